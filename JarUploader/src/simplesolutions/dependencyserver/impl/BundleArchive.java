@@ -0,0 +1,359 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import simplesolutions.util.ChannelOutputStream;
+
+/**
+ * The Class BundleArchive.
+ * <p>
+ * A set of bundles sent as a single zip archive. The jars are already
+ * compressed, so they're stored as they are: every header is known before the
+ * first byte is sent (the whole length too, so the response needs no chunked
+ * encoding) and each jar goes from the disk to the socket with
+ * {@link FileChannel#transferTo}, never crossing the heap.
+ * <p>
+ * Stored entries must declare their CRC32 before their data, so the CRC of
+ * each bundle is computed the first time it's archived and remembered until
+ * its content changes or it leaves the registry.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class BundleArchive {
+
+	/** Entry names are UTF-8, as flagged in every header. */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The size of a local file header, without the name. */
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	/** The size of a central directory header, without the name. */
+	private static final int CENTRAL_HEADER_SIZE = 46;
+
+	/** The size of the end of central directory record, without comment. */
+	private static final int END_SIZE = 22;
+
+	/** General purpose flag: names are UTF-8. */
+	private static final int FLAG_UTF_8 = 0x0800;
+
+	/** The biggest offset or size a zip without zip64 can hold. */
+	private static final long MAX_ZIP_SIZE = 0xFFFFFFFFL;
+
+	/** The biggest number of entries a zip without zip64 can hold. */
+	private static final int MAX_ZIP_ENTRIES = 0xFFFF;
+
+	/** The longest archive comment. */
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+	/**
+	 * The CRC32 of the bundles archived so far, by file name, along with the
+	 * content hash it was computed for.
+	 */
+	private static final ConcurrentMap<String, Object[]> crcs = new ConcurrentHashMap<String, Object[]>();
+
+	/**
+	 * A bundle in the archive.
+	 */
+	private final static class Entry {
+		private final byte[] name;
+		private final FileChannel file;
+		private final long size;
+		private final long crc;
+		private final int dosTime;
+		private final long offset;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param name
+		 *            the entry name
+		 * @param file
+		 *            the open bundle file
+		 * @param size
+		 *            the file size
+		 * @param crc
+		 *            the CRC32 of the file
+		 * @param dosTime
+		 *            the modification time, in MS-DOS format
+		 * @param offset
+		 *            the offset of the local header in the archive
+		 */
+		public Entry(byte[] name, FileChannel file, long size, long crc,
+				int dosTime, long offset) {
+			this.name = name;
+			this.file = file;
+			this.size = size;
+			this.crc = crc;
+			this.dosTime = dosTime;
+			this.offset = offset;
+		}
+	}
+
+	/** The entries, in archive order. */
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/** The archive comment. */
+	private final byte[] comment;
+
+	/** The offset of the central directory. */
+	private long directoryOffset;
+
+	/** The size of the central directory. */
+	private long directorySize;
+
+	/**
+	 * Instantiates a new bundle archive.
+	 *
+	 * @param comment
+	 *            the archive comment
+	 */
+	private BundleArchive(byte[] comment) {
+		this.comment = comment;
+	}
+
+	/**
+	 * Opens every bundle of an archive and lays out its entries.
+	 *
+	 * @param bundles
+	 *            the bundles
+	 * @param comment
+	 *            the archive comment, truncated if too long
+	 * @return the archive, to be closed once sent
+	 * @throws IOException
+	 *             Signals that a bundle couldn't be read, or that the bundles
+	 *             don't fit in a zip without zip64.
+	 */
+	public static BundleArchive open(Collection<JarBundleFile> bundles,
+			String comment) throws IOException {
+		byte[] commentBytes = comment.getBytes(UTF_8);
+		if (commentBytes.length > MAX_COMMENT_SIZE) {
+			byte[] truncated = new byte[MAX_COMMENT_SIZE];
+			System.arraycopy(commentBytes, 0, truncated, 0, truncated.length);
+			commentBytes = truncated;
+		}
+		BundleArchive archive = new BundleArchive(commentBytes);
+		boolean opened = false;
+		try {
+			if (bundles.size() > MAX_ZIP_ENTRIES)
+				throw new IOException("Too many bundles for a zip archive.");
+			long offset = 0;
+			int prefixLength = (Main.getJarsFolderName() + "/").length();
+			for (JarBundleFile bundle : bundles) {
+				FileChannel file = FileChannel.open(
+						Paths.get(bundle.getName()), StandardOpenOption.READ);
+				long size;
+				long crc;
+				try {
+					size = file.size();
+					crc = getCRC(bundle, file, size);
+				} catch (IOException e) {
+					file.close();
+					throw e;
+				}
+				byte[] name = bundle.getName().substring(prefixLength)
+						.getBytes(UTF_8);
+				archive.entries.add(new Entry(name, file, size, crc,
+						toDosTime(bundle.getLastModified()), offset));
+				offset += LOCAL_HEADER_SIZE + name.length + size;
+				archive.directorySize += CENTRAL_HEADER_SIZE + name.length;
+			}
+			archive.directoryOffset = offset;
+			if (offset > MAX_ZIP_SIZE)
+				throw new IOException("Bundles too big for a zip archive.");
+			opened = true;
+			return archive;
+		} finally {
+			if (!opened)
+				archive.close();
+		}
+	}
+
+	/**
+	 * Forgets the CRC32 of the bundles replaced or removed by a registry
+	 * generation.
+	 *
+	 * @param snapshot
+	 *            the new registry snapshot
+	 */
+	public static void invalidate(RegistrySnapshot snapshot) {
+		Map<String, JarBundleFile> bundles = snapshot.getBundles();
+		Iterator<Map.Entry<String, Object[]>> it = crcs.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Object[]> e = it.next();
+			JarBundleFile bundle = bundles.get(e.getKey());
+			if (bundle == null
+					|| !e.getValue()[0].equals(bundle.getContentHash()))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Gets the CRC32 of a bundle file, computing it if the bundle changed
+	 * since it was last archived.
+	 *
+	 * @param bundle
+	 *            the bundle
+	 * @param file
+	 *            the open bundle file
+	 * @param size
+	 *            the file size
+	 * @return the CRC32
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static long getCRC(JarBundleFile bundle, FileChannel file,
+			long size) throws IOException {
+		String hash = bundle.getContentHash();
+		Object[] known = crcs.get(bundle.getName());
+		if (hash != null && known != null && hash.equals(known[0])
+				&& size == bundle.getSize())
+			return (Long) known[1];
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		long position = 0;
+		while (position < size) {
+			int len = file.read(ByteBuffer.wrap(buffer), position);
+			if (len < 0)
+				throw new IOException("File truncated while being read.");
+			crc.update(buffer, 0, len);
+			position += len;
+		}
+		if (hash != null && size == bundle.getSize())
+			crcs.put(bundle.getName(), new Object[] { hash, crc.getValue() });
+		return crc.getValue();
+	}
+
+	/**
+	 * Converts a time to the MS-DOS date and time format zip headers use.
+	 *
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @return the date in the high 16 bits, the time in the low 16 bits
+	 */
+	private static int toDosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16); // 1980-01-01 00:00
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21
+				| c.get(Calendar.DAY_OF_MONTH) << 16
+				| c.get(Calendar.HOUR_OF_DAY) << 11
+				| c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+
+	/**
+	 * Gets the length of the archive.
+	 *
+	 * @return the length, in bytes
+	 */
+	public long getLength() {
+		return directoryOffset + directorySize + END_SIZE + comment.length;
+	}
+
+	/**
+	 * Gets the number of bundles in the archive.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Sends the archive.
+	 *
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void writeTo(ChannelOutputStream out) throws IOException {
+		for (Entry entry : entries) {
+			ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE);
+			header.putInt(0x04034b50);
+			header.putShort((short) 10); // Version needed: stored.
+			header.putShort((short) FLAG_UTF_8);
+			header.putShort((short) 0); // Stored.
+			header.putInt(entry.dosTime);
+			header.putInt((int) entry.crc);
+			header.putInt((int) entry.size);
+			header.putInt((int) entry.size);
+			header.putShort((short) entry.name.length);
+			header.putShort((short) 0); // No extra field.
+			out.write(header.array());
+			out.write(entry.name);
+			out.transferFrom(entry.file, 0, entry.size);
+		}
+		for (Entry entry : entries) {
+			ByteBuffer header = newBuffer(CENTRAL_HEADER_SIZE);
+			header.putInt(0x02014b50);
+			header.putShort((short) 10); // Version made by.
+			header.putShort((short) 10); // Version needed: stored.
+			header.putShort((short) FLAG_UTF_8);
+			header.putShort((short) 0); // Stored.
+			header.putInt(entry.dosTime);
+			header.putInt((int) entry.crc);
+			header.putInt((int) entry.size);
+			header.putInt((int) entry.size);
+			header.putShort((short) entry.name.length);
+			header.putShort((short) 0); // No extra field.
+			header.putShort((short) 0); // No comment.
+			header.putShort((short) 0); // Disk number.
+			header.putShort((short) 0); // Internal attributes.
+			header.putInt(0); // External attributes.
+			header.putInt((int) entry.offset);
+			out.write(header.array());
+			out.write(entry.name);
+		}
+		ByteBuffer end = newBuffer(END_SIZE);
+		end.putInt(0x06054b50);
+		end.putShort((short) 0); // This disk.
+		end.putShort((short) 0); // Disk of the central directory.
+		end.putShort((short) entries.size());
+		end.putShort((short) entries.size());
+		end.putInt((int) directorySize);
+		end.putInt((int) directoryOffset);
+		end.putShort((short) comment.length);
+		out.write(end.array());
+		out.write(comment);
+	}
+
+	/**
+	 * Creates a little endian buffer for a zip header.
+	 *
+	 * @param size
+	 *            the header size
+	 * @return the buffer
+	 */
+	private static ByteBuffer newBuffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Closes every bundle file.
+	 */
+	public void close() {
+		for (Entry entry : entries)
+			try {
+				entry.file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+	}
+}
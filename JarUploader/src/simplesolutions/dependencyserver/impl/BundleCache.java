@@ -0,0 +1,494 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Class BundleCache.
+ * <p>
+ * Keeps the bytes of the most downloaded bundles in memory, outside the Java
+ * heap (direct buffers), so they are sent without touching the disk nor
+ * adding garbage collection work. The cache is bounded in bytes.
+ * <p>
+ * Which bundles stay is decided as in W-TinyLFU: a bundle first goes into a
+ * small LRU window; when it leaves the window it only enters the main cache
+ * if it was downloaded more often than the bundle it would evict there. How
+ * often each bundle is downloaded is estimated by a small count-min sketch,
+ * halved every so often so old popularity fades. A burst of one-off
+ * downloads (ex.: source jars) thus never evicts the bundles everybody uses.
+ * The main cache is a segmented LRU: bundles hit again while on probation are
+ * protected from the next evictions.
+ * <p>
+ * Entries are tied to the registered bundle they were read for: once a
+ * registry generation replaces or removes a bundle, its entry is dropped.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class BundleCache {
+
+	/**
+	 * A cached bundle.
+	 */
+	private final static class Entry {
+		private final JarBundleFile bundle;
+		private final ByteBuffer content;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param bundle
+		 *            the bundle the content was read for
+		 * @param content
+		 *            the bundle file content
+		 */
+		public Entry(JarBundleFile bundle, ByteBuffer content) {
+			this.bundle = bundle;
+			this.content = content;
+		}
+
+		/**
+		 * Gets the size.
+		 *
+		 * @return the content size
+		 */
+		public int size() {
+			return content.capacity();
+		}
+	}
+
+	/** The size of the window, relative to the whole cache. */
+	private static final double WINDOW_RATIO = 0.01;
+
+	/** The size of the protected segment, relative to the main cache. */
+	private static final double PROTECTED_RATIO = 0.8;
+
+	/** The biggest bundle cached, relative to the whole cache. */
+	private static final double MAX_ENTRY_RATIO = 0.125;
+
+	/** The maximum size of the cache, in bytes. */
+	private final long capacity;
+
+	/** The maximum size of the window, in bytes. */
+	private final long windowCapacity;
+
+	/** The maximum size of the protected segment, in bytes. */
+	private final long protectedCapacity;
+
+	/** The recently added bundles, in access order. */
+	private final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/** The main cache bundles not hit since they entered it. */
+	private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/** The main cache bundles hit since they entered it. */
+	private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/** The size of each segment, in bytes. */
+	private long windowSize, probationSize, protectedSize;
+
+	/** The download frequencies. */
+	private final FrequencySketch sketch = new FrequencySketch();
+
+	/** The hits. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** The misses. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** The bundles evicted to make room for others. */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** The bundles refused for being less popular than those cached. */
+	private final AtomicLong rejections = new AtomicLong();
+
+	/**
+	 * Instantiates a new bundle cache.
+	 *
+	 * @param capacity
+	 *            the maximum size of the cache, in bytes; 0 disables it
+	 */
+	public BundleCache(long capacity) {
+		this.capacity = capacity;
+		this.windowCapacity = (long) (capacity * WINDOW_RATIO);
+		this.protectedCapacity = (long) ((capacity - windowCapacity) * PROTECTED_RATIO);
+	}
+
+	/**
+	 * Gets the content of a bundle file, reading it into the cache if it's
+	 * worth it.
+	 *
+	 * @param bundle
+	 *            the bundle being downloaded
+	 * @return a read only buffer with the whole file, positioned at 0, or null
+	 *         if the bundle isn't cached and must be read from the disk.
+	 */
+	public ByteBuffer get(JarBundleFile bundle) {
+		String key = bundle.getName();
+		long size = bundle.getSize();
+		synchronized (this) {
+			sketch.increment(key);
+			Entry entry = find(key, bundle);
+			if (entry != null) {
+				hits.incrementAndGet();
+				return entry.content.duplicate();
+			}
+			misses.incrementAndGet();
+			if (size <= 0 || size > capacity * MAX_ENTRY_RATIO)
+				return null;
+			/*
+			 * Too big for the window, it must win its admission right away
+			 * or not be read at all.
+			 */
+			if (size > windowCapacity && !admit(key, size)) {
+				rejections.incrementAndGet();
+				return null;
+			}
+		}
+		ByteBuffer content = read(bundle);
+		if (content == null)
+			return null;
+		synchronized (this) {
+			Entry entry = find(key, bundle);
+			if (entry != null)
+				return entry.content.duplicate(); // Read concurrently.
+			entry = new Entry(bundle, content);
+			if (size > windowCapacity) {
+				if (!admit(key, size)) {
+					rejections.incrementAndGet();
+					return content.duplicate();
+				}
+				probation.put(key, entry);
+				probationSize += size;
+			} else {
+				window.put(key, entry);
+				windowSize += size;
+				evictWindow();
+			}
+		}
+		return content.duplicate();
+	}
+
+	/**
+	 * Finds the entry of a bundle, dropping it if it was read for another
+	 * version of the file. Hit entries on probation get protected.
+	 *
+	 * @param key
+	 *            the bundle file name
+	 * @param bundle
+	 *            the bundle
+	 * @return the entry, or null if the bundle isn't cached
+	 */
+	private Entry find(String key, JarBundleFile bundle) {
+		Entry entry = window.get(key);
+		if (entry == null) {
+			entry = protectedSegment.get(key);
+			if (entry == null) {
+				entry = probation.get(key);
+				if (entry != null && entry.bundle == bundle) {
+					probation.remove(key);
+					probationSize -= entry.size();
+					protectedSegment.put(key, entry);
+					protectedSize += entry.size();
+					demoteProtected();
+				}
+			}
+		}
+		if (entry != null && entry.bundle != bundle) {
+			remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Reads a bundle file into a direct buffer.
+	 *
+	 * @param bundle
+	 *            the bundle
+	 * @return the read only content, or null if the file changed or can't
+	 *         be read.
+	 */
+	private static ByteBuffer read(JarBundleFile bundle) {
+		try {
+			FileChannel file = FileChannel.open(Paths.get(bundle.getName()),
+					StandardOpenOption.READ);
+			try {
+				if (file.size() != bundle.getSize())
+					return null; // Changed, the registry will catch up.
+				ByteBuffer content = ByteBuffer.allocateDirect((int) bundle
+						.getSize());
+				while (content.hasRemaining())
+					if (file.read(content, content.position()) < 0)
+						return null;
+				content.flip();
+				return content.asReadOnlyBuffer();
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Moves the bundles leaving the window into the main cache, if they're
+	 * popular enough.
+	 */
+	private void evictWindow() {
+		while (windowSize > windowCapacity && !window.isEmpty()) {
+			Map.Entry<String, Entry> eldest = window.entrySet().iterator()
+					.next();
+			String key = eldest.getKey();
+			Entry candidate = eldest.getValue();
+			window.remove(key);
+			windowSize -= candidate.size();
+			if (admit(key, candidate.size())) {
+				probation.put(key, candidate);
+				probationSize += candidate.size();
+			} else
+				rejections.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Makes room in the main cache for a candidate, evicting less popular
+	 * bundles (on probation first).
+	 *
+	 * @param key
+	 *            the candidate file name
+	 * @param size
+	 *            the candidate size
+	 * @return true, if there's room for the candidate; false if it's less
+	 *         popular than the bundles it would evict
+	 */
+	private boolean admit(String key, long size) {
+		long mainCapacity = capacity - windowCapacity;
+		int candidateFrequency = sketch.frequency(key);
+		while (probationSize + protectedSize + size > mainCapacity) {
+			LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedSegment
+					: probation;
+			if (segment.isEmpty())
+				return false;
+			String victim = segment.keySet().iterator().next();
+			if (sketch.frequency(victim) >= candidateFrequency)
+				return false;
+			remove(victim);
+			evictions.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the least recently used protected bundles back on probation while
+	 * the protected segment is too big.
+	 */
+	private void demoteProtected() {
+		while (protectedSize > protectedCapacity && protectedSegment.size() > 1) {
+			Iterator<Map.Entry<String, Entry>> it = protectedSegment
+					.entrySet().iterator();
+			Map.Entry<String, Entry> eldest = it.next();
+			it.remove();
+			protectedSize -= eldest.getValue().size();
+			probation.put(eldest.getKey(), eldest.getValue());
+			probationSize += eldest.getValue().size();
+		}
+	}
+
+	/**
+	 * Removes a bundle from whichever segment holds it.
+	 *
+	 * @param key
+	 *            the bundle file name
+	 */
+	private void remove(String key) {
+		Entry entry;
+		if ((entry = window.remove(key)) != null)
+			windowSize -= entry.size();
+		else if ((entry = probation.remove(key)) != null)
+			probationSize -= entry.size();
+		else if ((entry = protectedSegment.remove(key)) != null)
+			protectedSize -= entry.size();
+	}
+
+	/**
+	 * Drops the bundles replaced or removed by a registry generation.
+	 *
+	 * @param snapshot
+	 *            the new registry snapshot
+	 */
+	public synchronized void invalidate(RegistrySnapshot snapshot) {
+		Map<String, JarBundleFile> bundles = snapshot.getBundles();
+		invalidate(window, bundles);
+		invalidate(probation, bundles);
+		invalidate(protectedSegment, bundles);
+	}
+
+	/**
+	 * Drops the entries of a segment whose bundle is no longer registered.
+	 *
+	 * @param segment
+	 *            the segment
+	 * @param bundles
+	 *            the registered bundles
+	 */
+	private void invalidate(LinkedHashMap<String, Entry> segment,
+			Map<String, JarBundleFile> bundles) {
+		Iterator<Map.Entry<String, Entry>> it = segment.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Entry> e = it.next();
+			if (bundles.get(e.getKey()) != e.getValue().bundle) {
+				it.remove();
+				if (segment == window)
+					windowSize -= e.getValue().size();
+				else if (segment == probation)
+					probationSize -= e.getValue().size();
+				else
+					protectedSize -= e.getValue().size();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of downloads served from the cache.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of downloads not served from the cache.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of bundles evicted to make room for more popular ones.
+	 *
+	 * @return the evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of bundles refused for being less popular than those
+	 * they would evict.
+	 *
+	 * @return the rejections
+	 */
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	/**
+	 * Gets the size of the cached bundles.
+	 *
+	 * @return the size, in bytes
+	 */
+	public synchronized long getSize() {
+		return windowSize + probationSize + protectedSize;
+	}
+
+	/**
+	 * Gets the number of cached bundles.
+	 *
+	 * @return the number of bundles
+	 */
+	public synchronized int getEntryCount() {
+		return window.size() + probation.size() + protectedSegment.size();
+	}
+
+	/**
+	 * A count-min sketch of 4 bit counters estimating how often each key was
+	 * seen. Once it has seen as many keys as it has counters, every counter
+	 * is halved.
+	 */
+	private final static class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+				0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final int COUNTERS = 1 << 16;
+		private final long[] table = new long[COUNTERS / 16];
+		private int additions;
+
+		/**
+		 * Gets the estimated frequency of a key.
+		 *
+		 * @param key
+		 *            the key
+		 * @return the frequency, at most 15
+		 */
+		public int frequency(String key) {
+			int hash = key.hashCode();
+			int frequency = 15;
+			for (int i = 0; i < SEEDS.length; i++)
+				frequency = Math.min(frequency, counter(index(hash, i)));
+			return frequency;
+		}
+
+		/**
+		 * Counts a key, only incrementing its smallest counters (conservative
+		 * update).
+		 *
+		 * @param key
+		 *            the key
+		 */
+		public void increment(String key) {
+			int hash = key.hashCode();
+			int min = frequency(key);
+			if (min == 15)
+				return;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = index(hash, i);
+				if (counter(index) == min)
+					table[index >>> 4] += 1L << ((index & 15) << 2);
+			}
+			if (++additions >= COUNTERS) {
+				for (int i = 0; i < table.length; i++)
+					table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+				additions /= 2;
+			}
+		}
+
+		/**
+		 * Gets a counter.
+		 *
+		 * @param index
+		 *            the counter index
+		 * @return the counter value
+		 */
+		private int counter(int index) {
+			return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 15);
+		}
+
+		/**
+		 * Gets the counter of a key in one of the rows.
+		 *
+		 * @param hash
+		 *            the key hash
+		 * @param row
+		 *            the row
+		 * @return the counter index
+		 */
+		private static int index(int hash, int row) {
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return (int) h & (COUNTERS - 1);
+		}
+	}
+}
@@ -7,14 +7,30 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Class BundleDatabase.
@@ -26,8 +42,75 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public final class BundleDatabase extends Thread {
 
-	/** The repository database. */
-	private volatile Map<String, JarBundleFile> repositoryDatabase;
+	/**
+	 * The Interface ChangeListener, told about each new registry generation.
+	 */
+	public interface ChangeListener {
+
+		/**
+		 * Called once a batch of changes was published.
+		 * 
+		 * @param snapshot
+		 *            the new registry snapshot
+		 */
+		void registryChanged(RegistrySnapshot snapshot);
+	}
+
+	/**
+	 * The current registry snapshot, replaced as a whole after each batch of
+	 * changes.
+	 */
+	private volatile RegistrySnapshot snapshot = new RegistrySnapshot();
+
+	/** What each of the last generations changed. */
+	private final ChangeLog changeLog = new ChangeLog();
+
+	/** The most asked import clauses and their providers. */
+	private final ResolutionCache resolutionCache = new ResolutionCache(
+			Integer.getInteger("jarrepository.resolutionCacheSize", 4096));
+
+	/** The listeners told about each new generation. */
+	private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<ChangeListener>();
+
+	/** The number of threads resolving lists of packages. */
+	private static final int LOOKUP_THREADS = Runtime.getRuntime()
+			.availableProcessors();
+
+	/**
+	 * Below this many packages per thread a list is resolved on the calling
+	 * thread, handing it to the pool would cost more than the lookups.
+	 */
+	private static final int MIN_LOOKUPS_PER_THREAD = 16;
+
+	/** The threads resolving lists of packages. */
+	private final ExecutorService lookupWorkers = Executors
+			.newFixedThreadPool(LOOKUP_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Jar Registry Lookup");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** The pool reading bundle files. */
+	private final ForkJoinPool bundleReaders = new ForkJoinPool();
+
+	/**
+	 * How long the repository folder must be quiet before a batch of changes
+	 * is processed, in milliseconds.
+	 */
+	private static final long QUIET_PERIOD = Long.getLong(
+			"jarrepository.watchQuietPeriod", 200);
+
+	/**
+	 * The longest a batch of changes waits for the folder to be quiet, in
+	 * milliseconds, so a never ending copy still gets published.
+	 */
+	private static final long MAX_BATCH_DELAY = 10000;
+
+	/** How long to wait before retrying a locked file, in milliseconds. */
+	private static final long LOCKED_RETRY_PERIOD = 5000;
 
 	/** The repository directory. */
 	private static final Path repositoryDirectory = Paths.get(Main
@@ -36,15 +119,11 @@ public final class BundleDatabase extends Thread {
 	/** The watcher service. */
 	private WatchService watcherService;
 
-	/** The watch key. */
-	private WatchKey watchKey;
-
 	/**
 	 * Instantiates a new jar repositoryDatabase.
 	 */
 	public BundleDatabase() {
 		super("Jar Registry");
-		repositoryDatabase = new ConcurrentHashMap<String, JarBundleFile>();
 		/*
 		 * Create directory if it doesn't exist.
 		 */
@@ -52,7 +131,7 @@ public final class BundleDatabase extends Thread {
 			if (!createFolder(Main.getJarsFolderName()))
 				throw new IOException("Cannot create the repository folder.");
 			watcherService = FileSystems.getDefault().newWatchService();
-			watchKey = repositoryDirectory.register(watcherService,
+			repositoryDirectory.register(watcherService,
 					StandardWatchEventKinds.ENTRY_CREATE,
 					StandardWatchEventKinds.ENTRY_DELETE,
 					StandardWatchEventKinds.ENTRY_MODIFY);
@@ -82,82 +161,372 @@ public final class BundleDatabase extends Thread {
 	 * 
 	 * @see java.lang.Thread#run()
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public void run() {
 		/*
-		 * Watch for affected files in the repository folder.
+		 * Files that couldn't be read yet (still locked by whoever is writing
+		 * them), retried with the next batch.
 		 */
+		Set<String> locked = new LinkedHashSet<String>();
 		while (true) {
 			try {
-				watchKey = watcherService.take();
-				for (WatchEvent<?> event : watchKey.pollEvents()) {
-					WatchEvent<Path> watchEvent = (WatchEvent<Path>) event;
-					String affectedFile = repositoryDirectory.resolve(
-							watchEvent.context()).toString();
-					updateRegistry(affectedFile);
-					watchKey.reset();
+				Set<String> changed = new LinkedHashSet<String>(locked);
+				locked.clear();
+				/*
+				 * Wait for the first event, then keep collecting events until
+				 * the folder has been quiet for a while (or the batch is
+				 * getting too old), so a bulk copy is handled in one go and
+				 * each file is read only once.
+				 */
+				WatchKey key = changed.isEmpty() ? watcherService.take()
+						: watcherService.poll(LOCKED_RETRY_PERIOD,
+								TimeUnit.MILLISECONDS);
+				boolean overflow = false;
+				long batchStart = System.currentTimeMillis();
+				while (key != null) {
+					overflow |= pollEvents(key, changed);
+					long wait = Math.min(QUIET_PERIOD, batchStart
+							+ MAX_BATCH_DELAY - System.currentTimeMillis());
+					key = wait <= 0 ? null : watcherService.poll(wait,
+							TimeUnit.MILLISECONDS);
+				}
+				if (overflow) {
+					System.err.println("Too many changes, rescanning the "
+							+ "repository folder.");
+					changed.addAll(findChangedFiles());
 				}
+				if (!changed.isEmpty())
+					updateRegistry(changed, locked);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
+				return;
 			}
 		}
 	}
 
 	/**
-	 * Updates jar repositoryDatabase.
+	 * Collects the files affected by the events of a watch key.
 	 * 
-	 * @param kind
-	 *            the kind of event occurred.
-	 * @param affectedFile
-	 *            the affected file.
+	 * @param key
+	 *            the watch key
+	 * @param changed
+	 *            where to put the affected files
+	 * @return true, if events were lost (overflow)
 	 */
-	private void updateRegistry(String affectedFileName) {
-		System.err.println("File modified: " + affectedFileName);
-		File affectedFile = new File(affectedFileName);
-		/*
-		 * File deleted? Remove it from our repositoryDatabase.
-		 */
-		if (!affectedFile.exists()) {
-			System.err.println("File was deleted.");
-			repositoryDatabase.remove(affectedFileName);
-			updateContentsOfXML();
-			return;
+	@SuppressWarnings("unchecked")
+	private static boolean pollEvents(WatchKey key, Set<String> changed) {
+		boolean overflow = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflow = true;
+				continue;
+			}
+			WatchEvent<Path> watchEvent = (WatchEvent<Path>) event;
+			changed.add(repositoryDirectory.resolve(watchEvent.context())
+					.toString());
 		}
-		/*
-		 * Is the file still being modified/locked?
-		 */
-		while (!affectedFile.canRead()) {
-			try {
-				System.err.println("File locked, will try again in 5 sec...");
-				Thread.sleep(5000);
-			} catch (InterruptedException e) {
-				return;
+		key.reset();
+		return overflow;
+	}
+
+	/**
+	 * Compares the repository folder with the registry, for when watch events
+	 * were lost.
+	 * 
+	 * @return the files added, removed, or whose size or modification time
+	 *         changed since they were registered.
+	 */
+	private Set<String> findChangedFiles() {
+		Map<String, JarBundleFile> registered = snapshot.getBundles();
+		Set<String> changed = new LinkedHashSet<String>();
+		Set<String> removed = new HashSet<String>(registered.keySet());
+		File[] listOfFiles = repositoryDirectory.toFile().listFiles();
+		if (listOfFiles != null)
+			for (File file : listOfFiles) {
+				if (!file.isFile())
+					continue;
+				String fileName = repositoryDirectory.toString()
+						+ File.separator + file.getName();
+				removed.remove(fileName);
+				JarBundleFile bundle = registered.get(fileName);
+				if (bundle == null || bundle.getSize() != file.length()
+						|| bundle.getLastModified() != file.lastModified())
+					changed.add(fileName);
 			}
+		changed.addAll(removed);
+		return changed;
+	}
+
+	/**
+	 * Updates the registry with a batch of affected files: deleted files are
+	 * removed, the others are read in parallel, and contents.xml and the
+	 * bundle index are written once for the whole batch.
+	 * 
+	 * @param affectedFileNames
+	 *            the affected files.
+	 * @param locked
+	 *            where to put the files that can't be read yet
+	 */
+	private void updateRegistry(Set<String> affectedFileNames,
+			Set<String> locked) {
+		List<String> removed = new ArrayList<String>();
+		List<String> toRead = new ArrayList<String>();
+		for (String affectedFileName : affectedFileNames) {
+			File affectedFile = new File(affectedFileName);
+			if (!affectedFile.exists()) {
+				/*
+				 * File deleted? Remove it from our repositoryDatabase.
+				 */
+				if (snapshot.getBundles().containsKey(affectedFileName)) {
+					System.err.println("File deleted: " + affectedFileName);
+					removed.add(affectedFileName);
+				}
+			} else if (!affectedFile.canRead()) {
+				/*
+				 * Still being modified/locked, try again later.
+				 */
+				System.err.println("File locked, will try again later: "
+						+ affectedFileName);
+				locked.add(affectedFileName);
+			} else if (!isRegistered(affectedFileName, affectedFile))
+				toRead.add(affectedFileName);
 		}
 		/*
-		 * Valid jar file?
+		 * File added or modified? Update its manifest data.
 		 */
-		if (!isZipFile(affectedFile)) {
-			System.err.println("Not a valid JAR file.");
-			return;
+		JarBundleFile[] read = readBundles(toRead);
+		List<JarBundleFile> added = new ArrayList<JarBundleFile>();
+		for (int i = 0; i < read.length; i++) {
+			if (read[i] != null) {
+				System.err.println("Bundle added: " + toRead.get(i));
+				added.add(read[i]);
+			} else {
+				System.err.println("Not a valid bundle file: " + toRead.get(i));
+				removed.add(toRead.get(i));
+			}
 		}
-		/*
-		 * File added or modified? Update its manifest data.
+		if (added.isEmpty() && removed.isEmpty())
+			return; // Nothing new (ex.: the event of an upload).
+		commit(added, removed);
+		fireRegistryChanged();
+	}
+
+	/**
+	 * Applies a batch of changes and persists them. Only the changes are
+	 * written, the full index (and contents.xml) only once the journal grows
+	 * big enough.
+	 * 
+	 * @param added
+	 *            the bundles added, replacing the previous version of the same
+	 *            file if any
+	 * @param removed
+	 *            the file names of the bundles removed
+	 */
+	private synchronized void commit(List<JarBundleFile> added,
+			List<String> removed) {
+		update(added, removed);
+		if (BundleIndexFile.needsCompaction())
+			updateContentsOfXML();
+		else {
+			XMLDataBase.publish(snapshot);
+			BundleIndexFile.append(added, removed);
+		}
+	}
+
+	/**
+	 * Publishes an uploaded bundle: its file is moved into the repository
+	 * folder, replacing any file with the same name, and the registry is
+	 * updated right away with what was read while receiving it.
+	 * 
+	 * @param upload
+	 *            the upload, which must be a bundle
+	 * @param fileName
+	 *            the file name in the repository folder
+	 * @return the bundle registered
+	 * @throws IOException
+	 *             Signals that the file couldn't be moved.
+	 */
+	public JarBundleFile publish(BundleUpload upload, String fileName)
+			throws IOException {
+		Path target = repositoryDirectory.resolve(fileName);
+		Files.move(upload.getFile(), target,
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		BundleManifest manifest = upload.getManifest();
+		JarBundleFile bundle = new JarBundleFile(repositoryDirectory
+				.toString() + File.separator + fileName,
+				manifest.getImportedPackages(),
+				manifest.getExportedPackages(), upload.getSize(), target
+						.toFile().lastModified(), upload.getContentHash());
+		System.err.println("Bundle uploaded: " + bundle.getName());
+		List<JarBundleFile> added = new ArrayList<JarBundleFile>();
+		added.add(bundle);
+		commit(added, new ArrayList<String>());
+		fireRegistryChanged();
+		return bundle;
+	}
+
+	/**
+	 * Checks if a file is registered as it is, i.e. with the same size and
+	 * modification time (ex.: an upload, registered before its event is
+	 * seen).
+	 * 
+	 * @param fileName
+	 *            the file name
+	 * @param file
+	 *            the file
+	 * @return true, if it doesn't need to be read again
+	 */
+	private boolean isRegistered(String fileName, File file) {
+		JarBundleFile bundle = snapshot.getBundles().get(fileName);
+		return bundle != null && bundle.getSize() == file.length()
+				&& bundle.getLastModified() == file.lastModified();
+	}
+
+	/**
+	 * Reads a list of bundle files on every core.
+	 * 
+	 * @param fileNames
+	 *            the files to read
+	 * @return the bundle read from each file, null for the files that aren't
+	 *         bundles.
+	 */
+	private JarBundleFile[] readBundles(List<String> fileNames) {
+		JarBundleFile[] bundles = new JarBundleFile[fileNames.size()];
+		if (bundles.length > 0)
+			bundleReaders.invoke(new ReadBundlesTask(fileNames, bundles, 0,
+					bundles.length));
+		return bundles;
+	}
+
+	/**
+	 * Reads a bundle file: its manifest imports and exports, size,
+	 * modification time and content hash. Doesn't touch the registry, so it
+	 * can be called from any thread.
+	 * 
+	 * @param fileName
+	 *            the bundle file name
+	 * @return the bundle, or null if the file isn't a jar with a manifest.
+	 */
+	private static JarBundleFile readBundle(String fileName) {
+		BundleManifest manifest = JarLoader.readManifest(fileName);
+		if (manifest == null)
+			return null;
+		File file = new File(fileName);
+		return new JarBundleFile(fileName, manifest.getImportedPackages(),
+				manifest.getExportedPackages(),
+				file.length(), file.lastModified(),
+				JarLoader.getContentHash(fileName));
+	}
+
+	/**
+	 * Reads a list of bundle files in parallel, splitting the list until each
+	 * task has a single file so idle threads can steal the work of busy ones
+	 * (big jars take much longer than small ones).
+	 */
+	private final static class ReadBundlesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<String> fileNames;
+		private final JarBundleFile[] bundles;
+		private final int from;
+		private final int to;
+
+		/**
+		 * Instantiates a new read bundles task.
+		 * 
+		 * @param fileNames
+		 *            the files to read
+		 * @param bundles
+		 *            where to put the bundle read from each file (null if the
+		 *            file isn't a bundle)
+		 * @param from
+		 *            the first file of this task
+		 * @param to
+		 *            the file after the last one of this task
 		 */
-		if (JarLoader.isValidJarFileWithManifest(affectedFileName)) {
-			String[] importedPackages = JarLoader
-					.getImportedPackages(affectedFileName);
-			String[] exportedPackages = JarLoader
-					.getExportedPackages(affectedFileName);
-			repositoryDatabase.put(affectedFileName, new JarBundleFile(
-					affectedFileName, importedPackages, exportedPackages));
-			System.err.println("Bundle added with success!");
-		} else {
-			repositoryDatabase.remove(affectedFileName);
-			System.err.println("Not a valid bundle file!");
+		public ReadBundlesTask(List<String> fileNames, JarBundleFile[] bundles,
+				int from, int to) {
+			this.fileNames = fileNames;
+			this.bundles = bundles;
+			this.from = from;
+			this.to = to;
 		}
-		updateContentsOfXML();
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				String fileName = fileNames.get(from);
+				if (isZipFile(new File(fileName)))
+					bundles[from] = readBundle(fileName);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ReadBundlesTask(fileNames, bundles, from, middle),
+					new ReadBundlesTask(fileNames, bundles, middle, to));
+		}
+	}
+
+	/**
+	 * Applies a batch of changes to the registry, publishing them all at once
+	 * as a new snapshot.
+	 * 
+	 * @param added
+	 *            the bundles added, replacing the previous version of the same
+	 *            file if any
+	 * @param removed
+	 *            the file names of the bundles removed
+	 */
+	private synchronized void update(List<JarBundleFile> added,
+			List<String> removed) {
+		changeLog.record(snapshot, added, removed);
+		snapshot = snapshot.apply(added, removed);
+	}
+
+	/**
+	 * Tells the listeners about the current generation.
+	 */
+	private void fireRegistryChanged() {
+		RegistrySnapshot current = snapshot;
+		for (ChangeListener listener : changeListeners)
+			listener.registryChanged(current);
+	}
+
+	/**
+	 * Adds a listener told about each new registry generation, once its
+	 * contents.xml is published.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	/**
+	 * Gets what changed in the registry since a generation.
+	 * 
+	 * @param runId
+	 *            the run id of the generation known by the client
+	 * @param since
+	 *            the generation known by the client
+	 * @param snapshot
+	 *            the snapshot the changes lead to
+	 * @return the changes, flagged as a reset if that generation isn't
+	 *         remembered anymore or belongs to another run
+	 */
+	public ChangeLog.Changes getChangesSince(long runId, long since,
+			RegistrySnapshot snapshot) {
+		return changeLog.getChangesSince(runId, since, snapshot);
+	}
+
+	/**
+	 * Gets the id of this run of the server, shared by every registry
+	 * snapshot.
+	 * 
+	 * @return the run id
+	 */
+	public long getRunId() {
+		return snapshot.getRunId();
 	}
 
 	/**
@@ -167,7 +536,7 @@ public final class BundleDatabase extends Thread {
 	 *            the file
 	 * @return true, if is zip file
 	 */
-	private boolean isZipFile(File file) {
+	private static boolean isZipFile(File file) {
 		if (file.isDirectory()) {
 			return false;
 		}
@@ -190,10 +559,25 @@ public final class BundleDatabase extends Thread {
 	}
 
 	/**
-	 * Update contents.xml.
+	 * Update contents.xml and saves the whole bundle index file, compacting
+	 * its journal.
 	 */
 	private void updateContentsOfXML() {
-		XMLDataBase.save(repositoryDatabase);
+		RegistrySnapshot current = snapshot;
+		XMLDataBase.publish(current);
+		XMLDataBase.saveFile();
+		BundleIndexFile.save(current.getBundles().values());
+	}
+
+	/**
+	 * Gets the current registry snapshot. Requests needing several lookups
+	 * should do them all on the same snapshot, so that they see a single
+	 * consistent generation of the registry.
+	 * 
+	 * @return the snapshot
+	 */
+	public RegistrySnapshot getSnapshot() {
+		return snapshot;
 	}
 
 	/**
@@ -204,13 +588,161 @@ public final class BundleDatabase extends Thread {
 	 *            the package name in the OSGi manifest.mf format, ex.:
 	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
 	 * @return a string containing the jar/bundle relative path or null if no
-	 *         bundle provides a compatible package.
+	 *         bundle provides a compatible package. When several bundles
+	 *         provide it, the one with the highest compatible version wins.
 	 */
 	public String getJarProvidingPackage(String packageNameManifest) {
-		for (Map.Entry<String, JarBundleFile> e : repositoryDatabase.entrySet())
-			if (e.getValue().providesPackage(packageNameManifest))
-				return e.getKey();
-		return null;
+		JarBundleFile bundle = getBundleProvidingPackage(packageNameManifest);
+		return bundle == null ? null : bundle.getName();
+	}
+
+	/**
+	 * Seeks for the bundle providing a given package with a given version.
+	 * 
+	 * @param packageNameManifest
+	 *            the package name in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundle or null if no bundle provides a compatible package.
+	 */
+	public JarBundleFile getBundleProvidingPackage(String packageNameManifest) {
+		return getBundleProvidingPackage(snapshot, packageNameManifest);
+	}
+
+	/**
+	 * Seeks for the bundle providing a given package with a given version in
+	 * a given registry snapshot. Answers are cached for the snapshot
+	 * generation.
+	 * 
+	 * @param snapshot
+	 *            the registry snapshot
+	 * @param packageNameManifest
+	 *            the package name in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundle or null if no bundle provides a compatible package.
+	 */
+	public JarBundleFile getBundleProvidingPackage(RegistrySnapshot snapshot,
+			String packageNameManifest) {
+		return resolutionCache.getBundleProvidingPackage(snapshot,
+				packageNameManifest);
+	}
+
+	/**
+	 * Gets the cache of resolved import clauses, for its statistics.
+	 * 
+	 * @return the resolution cache
+	 */
+	public ResolutionCache getResolutionCache() {
+		return resolutionCache;
+	}
+
+	/**
+	 * Seeks for the bundles providing a list of packages. The list is split
+	 * among the lookup threads and resolved in parallel.
+	 * 
+	 * @param packageNamesManifest
+	 *            the package names in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundles, in the same order as the packages, with null for
+	 *         each package no bundle provides.
+	 */
+	public JarBundleFile[] getBundlesProvidingPackages(
+			List<String> packageNamesManifest) {
+		return getBundlesProvidingPackages(snapshot, packageNamesManifest);
+	}
+
+	/**
+	 * Seeks for the bundles providing a list of packages in a given registry
+	 * snapshot. The list is split among the lookup threads and resolved in
+	 * parallel.
+	 * 
+	 * @param snapshot
+	 *            the registry snapshot
+	 * @param packageNamesManifest
+	 *            the package names in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundles, in the same order as the packages, with null for
+	 *         each package no bundle provides or malformed.
+	 */
+	public JarBundleFile[] getBundlesProvidingPackages(
+			final RegistrySnapshot snapshot,
+			final List<String> packageNamesManifest) {
+		final JarBundleFile[] bundles = new JarBundleFile[packageNamesManifest
+				.size()];
+		int threads = Math.min(LOOKUP_THREADS, bundles.length
+				/ MIN_LOOKUPS_PER_THREAD);
+		if (threads <= 1) {
+			for (int i = 0; i < bundles.length; i++)
+				bundles[i] = lookup(snapshot, packageNamesManifest.get(i));
+			return bundles;
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+		for (int t = 0; t < threads; t++) {
+			final int from = t * bundles.length / threads;
+			final int to = (t + 1) * bundles.length / threads;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = from; i < to; i++)
+						bundles[i] = lookup(snapshot, packageNamesManifest.get(i));
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> result : lookupWorkers.invokeAll(tasks))
+				result.get();
+		} catch (InterruptedException e) {
+			/*
+			 * The lookups left are cancelled, the list isn't complete.
+			 */
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while resolving packages.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+		return bundles;
+	}
+
+	/**
+	 * Seeks for the bundle providing a package of a list. A malformed clause
+	 * is reported as provided by no bundle, whichever thread looks it up, so
+	 * it doesn't stop the lookups of the rest of the list.
+	 * 
+	 * @param snapshot
+	 *            the registry snapshot
+	 * @param packageNameManifest
+	 *            the package name in the OSGi manifest.mf format
+	 * @return the bundle or null if no bundle provides a compatible package
+	 *         or the clause is malformed.
+	 */
+	private JarBundleFile lookup(RegistrySnapshot snapshot,
+			String packageNameManifest) {
+		try {
+			return getBundleProvidingPackage(snapshot, packageNameManifest);
+		} catch (RuntimeException e) {
+			System.err.println("Malformed import clause " + packageNameManifest
+					+ ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Seeks for every bundle needed at runtime by a list of packages: their
+	 * providers and, transitively, the providers of what those import.
+	 * 
+	 * @param packageNamesManifest
+	 *            the package names in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundles needed and the mandatory imports no bundle provides
+	 */
+	public TransitiveResolver.Resolution getTransitiveClosure(
+			List<String> packageNamesManifest) {
+		return snapshot.getTransitiveClosure(packageNamesManifest);
 	}
 
 	/**
@@ -220,12 +752,39 @@ public final class BundleDatabase extends Thread {
 	private void populateBundleDatabase() {
 		File folder = repositoryDirectory.toFile();
 		File[] listOfFiles = folder.listFiles();
+		/*
+		 * The bundles known from the last run. Files with the same size and
+		 * modification time don't need to be read again.
+		 */
+		Map<String, JarBundleFile> known = BundleIndexFile.load();
+		List<String> toRead = new ArrayList<String>();
+		List<JarBundleFile> bundles = new ArrayList<JarBundleFile>();
 
 		for (int i = 0; i < listOfFiles.length; i++) {
 			if (listOfFiles[i].isFile()) {
-				updateRegistry(repositoryDirectory.toString() + File.separator
-						+ listOfFiles[i].getName());
+				String fileName = repositoryDirectory.toString()
+						+ File.separator + listOfFiles[i].getName();
+				JarBundleFile bundle = known.get(fileName);
+				if (bundle != null
+						&& bundle.getSize() == listOfFiles[i].length()
+						&& bundle.getLastModified() == listOfFiles[i]
+								.lastModified())
+					bundles.add(bundle);
+				else
+					toRead.add(fileName);
 			}
 		}
+		int reused = bundles.size();
+		/*
+		 * Read the new or changed files on every core, then merge them.
+		 */
+		for (JarBundleFile bundle : readBundles(toRead))
+			if (bundle != null)
+				bundles.add(bundle);
+		update(bundles, new ArrayList<String>());
+		System.err.println(reused + " bundles loaded from "
+				+ BundleIndexFile.FILE_NAME + ", " + toRead.size()
+				+ " files read.");
+		updateContentsOfXML();
 	}
 }
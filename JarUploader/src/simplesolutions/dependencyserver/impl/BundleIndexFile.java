@@ -0,0 +1,330 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import simplesolutions.dependencyserver.impl.JarBundleFile.PackageVersion;
+
+/**
+ * The Class BundleIndexFile.
+ * <p>
+ * Compact binary copy of the registry kept on disk, so that a restart doesn't
+ * have to open every jar again. Each bundle is stored with the size,
+ * modification time and content hash of its file plus its parsed imports and
+ * exports; at boot only the files whose size or modification time changed
+ * are read again. The whole file is protected by a CRC32, a corrupted index is
+ * simply ignored.
+ * <p>
+ * Between two full saves, changes are appended to a journal file instead of
+ * rewriting the whole index: each batch only costs the records of the bundles
+ * it added or removed. Loading replays the journal over the index, and once
+ * the journal grows bigger than the index the two are compacted into a new
+ * index.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class BundleIndexFile {
+
+	/** The Constant FILE_NAME. */
+	public static final String FILE_NAME = "bundles.idx";
+
+	/** The journal file name. */
+	public static final String JOURNAL_FILE_NAME = "bundles.journal";
+
+	/** Journal record of a bundle added or modified. */
+	private static final byte RECORD_ADD = 1;
+
+	/** Journal record of a bundle removed. */
+	private static final byte RECORD_REMOVE = 2;
+
+	/** Below this size the journal is never compacted. */
+	private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+	/** The magic number every index file starts with. */
+	private static final int MAGIC = 0x4A524958;
+
+	/** The version of the file format. */
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Loads the bundles stored in the index file.
+	 *
+	 * @return the bundles by file name, empty if there's no valid index.
+	 */
+	public static Map<String, JarBundleFile> load() {
+		Map<String, JarBundleFile> bundles = new HashMap<String, JarBundleFile>();
+		try {
+			byte[] content = Files.readAllBytes(Paths.get(FILE_NAME));
+			if (content.length < 8)
+				return bundles;
+			/*
+			 * Check the CRC of everything but the CRC itself.
+			 */
+			CRC32 crc = new CRC32();
+			crc.update(content, 0, content.length - 8);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					content));
+			in.skipBytes(content.length - 8);
+			if (in.readLong() != crc.getValue()) {
+				System.err.println("Bundle index corrupted, ignoring it.");
+				return bundles;
+			}
+			in = new DataInputStream(new ByteArrayInputStream(content, 0,
+					content.length - 8));
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				return bundles;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				JarBundleFile bundle = readBundle(in);
+				bundles.put(bundle.getName(), bundle);
+			}
+		} catch (NoSuchFileException e) {
+			// First run, nothing to load.
+		} catch (IOException e) {
+			e.printStackTrace();
+			bundles.clear();
+		}
+		replayJournal(bundles);
+		return bundles;
+	}
+
+	/**
+	 * Applies the changes recorded in the journal. Each record is framed by
+	 * its length and CRC32, reading stops at the first incomplete or
+	 * corrupted one (i.e. a batch being appended when the server died).
+	 * 
+	 * @param bundles
+	 *            the bundles by file name, to apply the changes to
+	 */
+	private static void replayJournal(Map<String, JarBundleFile> bundles) {
+		byte[] journal;
+		try {
+			journal = Files.readAllBytes(Paths.get(JOURNAL_FILE_NAME));
+		} catch (NoSuchFileException e) {
+			return; // Nothing changed since the last full save.
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		ByteBuffer records = ByteBuffer.wrap(journal);
+		while (records.remaining() >= 8) {
+			int length = records.getInt();
+			if (length < 1 || length > records.remaining() - 4)
+				break;
+			CRC32 crc = new CRC32();
+			crc.update(journal, records.position(), length);
+			if ((int) crc.getValue() != records.getInt(records.position()
+					+ length))
+				break;
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					journal, records.position(), length));
+			try {
+				if (in.readByte() == RECORD_ADD) {
+					JarBundleFile bundle = readBundle(in);
+					bundles.put(bundle.getName(), bundle);
+				} else
+					bundles.remove(in.readUTF());
+			} catch (IOException e) {
+				break;
+			}
+			records.position(records.position() + length + 4);
+		}
+		if (records.hasRemaining())
+			System.err.println("Bundle journal truncated, ignoring its last "
+					+ records.remaining() + " bytes.");
+	}
+
+	/**
+	 * Appends a batch of changes to the journal, making sure they reached the
+	 * disk.
+	 * 
+	 * @param added
+	 *            the bundles added or modified
+	 * @param removed
+	 *            the file names of the bundles removed
+	 * @return true, if successful
+	 */
+	public synchronized static boolean append(Collection<JarBundleFile> added,
+			Collection<String> removed) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			for (String fileName : removed) {
+				ByteArrayOutputStream record = new ByteArrayOutputStream();
+				DataOutputStream recordOut = new DataOutputStream(record);
+				recordOut.writeByte(RECORD_REMOVE);
+				recordOut.writeUTF(fileName);
+				writeRecord(record.toByteArray(), out);
+			}
+			for (JarBundleFile bundle : added) {
+				ByteArrayOutputStream record = new ByteArrayOutputStream();
+				DataOutputStream recordOut = new DataOutputStream(record);
+				recordOut.writeByte(RECORD_ADD);
+				writeBundle(bundle, recordOut);
+				writeRecord(record.toByteArray(), out);
+			}
+			FileChannel journal = FileChannel.open(
+					Paths.get(JOURNAL_FILE_NAME), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+				while (buffer.hasRemaining())
+					journal.write(buffer);
+				journal.force(false);
+			} finally {
+				journal.close();
+			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a journal record, framed by its length and CRC32.
+	 * 
+	 * @param record
+	 *            the record
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeRecord(byte[] record, DataOutputStream out)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		out.writeInt(record.length);
+		out.write(record);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Checks if the journal grew enough to be compacted, i.e. bigger than the
+	 * index itself, so compacting costs as much as everything appended since
+	 * the last time.
+	 * 
+	 * @return true, if a full save should be done
+	 */
+	public static boolean needsCompaction() {
+		long journalSize = new File(JOURNAL_FILE_NAME).length();
+		return journalSize > Math.max(MIN_COMPACTION_SIZE, new File(
+				FILE_NAME).length());
+	}
+
+	/**
+	 * Saves the bundles into the index file, emptying the journal. The file is
+	 * written aside and then renamed over the old one, so a crash never leaves
+	 * a half written index (and replaying the old journal over the new index
+	 * changes nothing).
+	 *
+	 * @param bundles
+	 *            the bundles
+	 * @return true, if successful
+	 */
+	public synchronized static boolean save(Collection<JarBundleFile> bundles) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(bundles.size());
+			for (JarBundleFile bundle : bundles)
+				writeBundle(bundle, out);
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			out.writeLong(crc.getValue());
+			out.flush();
+			Path tmp = Paths.get(FILE_NAME + ".tmp");
+			Files.write(tmp, bytes.toByteArray());
+			Files.move(tmp, Paths.get(FILE_NAME),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(Paths.get(JOURNAL_FILE_NAME));
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a bundle.
+	 *
+	 * @param bundle
+	 *            the bundle
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeBundle(JarBundleFile bundle, DataOutputStream out)
+			throws IOException {
+		out.writeUTF(bundle.getName());
+		out.writeLong(bundle.getSize());
+		out.writeLong(bundle.getLastModified());
+		out.writeUTF(bundle.getContentHash() == null ? "" : bundle
+				.getContentHash());
+		out.writeInt(bundle.getExportedPackages().size());
+		for (Map.Entry<String, PackageVersion> e : bundle.getExportedPackages()
+				.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue().toString());
+		}
+		out.writeInt(bundle.getImportedPackages().size());
+		for (Map.Entry<String, PackageVersion> e : bundle.getImportedPackages()
+				.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue().toString());
+			out.writeBoolean(bundle.isOptionalImport(e.getKey()));
+		}
+	}
+
+	/**
+	 * Reads a bundle.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @return the bundle
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static JarBundleFile readBundle(DataInputStream in)
+			throws IOException {
+		String name = in.readUTF();
+		long size = in.readLong();
+		long lastModified = in.readLong();
+		String contentHash = in.readUTF();
+		String[] exportedPackages = new String[in.readInt()];
+		for (int i = 0; i < exportedPackages.length; i++)
+			exportedPackages[i] = in.readUTF() + ";version=\"" + in.readUTF()
+					+ "\"";
+		String[] importedPackages = new String[in.readInt()];
+		for (int i = 0; i < importedPackages.length; i++) {
+			importedPackages[i] = in.readUTF() + ";version=\"" + in.readUTF()
+					+ "\"";
+			if (in.readBoolean())
+				importedPackages[i] += ";resolution:=optional";
+		}
+		return new JarBundleFile(name, importedPackages, exportedPackages,
+				size, lastModified, contentHash.length() == 0 ? null
+						: contentHash);
+	}
+}
@@ -0,0 +1,142 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import simplesolutions.dependencyserver.impl.ManifestHeaderParser.Clause;
+
+/**
+ * The Class BundleManifest.
+ * <p>
+ * The main section of a jar's manifest.mf, with every header it declares.
+ * Continuation lines (those starting with a space) are joined to the line
+ * above them, as the jar specification says.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class BundleManifest {
+
+	/** Manifests are UTF-8. */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/** The headers, by lower case name (header names are case insensitive). */
+	private final Map<String, String> headers;
+
+	/**
+	 * Instantiates a new bundle manifest.
+	 *
+	 * @param headers
+	 *            the headers, by lower case name
+	 */
+	private BundleManifest(Map<String, String> headers) {
+		this.headers = headers;
+	}
+
+	/**
+	 * Parses the main section of a manifest.
+	 *
+	 * @param content
+	 *            the manifest.mf bytes
+	 * @return the manifest
+	 */
+	public static BundleManifest parse(byte[] content) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		String text = new String(content, UTF_8);
+		StringBuilder value = null;
+		String name = null;
+		int lineStart = 0;
+		while (lineStart < text.length()) {
+			/*
+			 * Lines end with CRLF, LF or CR.
+			 */
+			int lineEnd = lineStart;
+			while (lineEnd < text.length() && text.charAt(lineEnd) != '\n'
+					&& text.charAt(lineEnd) != '\r')
+				lineEnd++;
+			int next = lineEnd;
+			if (next < text.length() && text.charAt(next) == '\r')
+				next++;
+			if (next < text.length() && text.charAt(next) == '\n')
+				next++;
+			if (lineEnd == lineStart)
+				break; // End of the main section.
+			if (text.charAt(lineStart) == ' ') {
+				if (value != null)
+					value.append(text, lineStart + 1, lineEnd);
+			} else {
+				if (name != null)
+					headers.put(name, value.toString());
+				int colon = text.indexOf(':', lineStart);
+				if (colon < 0 || colon > lineEnd) {
+					name = null;
+					value = null;
+				} else {
+					name = text.substring(lineStart, colon).trim()
+							.toLowerCase();
+					int valueStart = colon + 1;
+					if (valueStart < lineEnd && text.charAt(valueStart) == ' ')
+						valueStart++;
+					value = new StringBuilder(text.substring(valueStart,
+							lineEnd));
+				}
+			}
+			lineStart = next;
+		}
+		if (name != null)
+			headers.put(name, value.toString());
+		return new BundleManifest(headers);
+	}
+
+	/**
+	 * Gets a header.
+	 *
+	 * @param name
+	 *            the header name, ex.: <i>Bundle-SymbolicName</i>
+	 * @return the header value, or null if the manifest doesn't declare it.
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * Gets every header.
+	 *
+	 * @return the headers, by lower case name
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Gets the clauses of a header.
+	 *
+	 * @param name
+	 *            the header name, ex.: <i>Import-Package</i>
+	 * @return the clauses, empty if the manifest doesn't declare the header.
+	 */
+	public List<Clause> getClauses(String name) {
+		return ManifestHeaderParser.parse(getHeader(name));
+	}
+
+	/**
+	 * Gets the exported packages.
+	 *
+	 * @return the exported packages, or null if the manifest doesn't export
+	 *         any.
+	 */
+	public String[] getExportedPackages() {
+		return ManifestHeaderParser.parseToStrings(getHeader("Export-Package"));
+	}
+
+	/**
+	 * Gets the imported packages.
+	 *
+	 * @return the imported packages, or null if the manifest doesn't import
+	 *         any.
+	 */
+	public String[] getImportedPackages() {
+		return ManifestHeaderParser.parseToStrings(getHeader("Import-Package"));
+	}
+}
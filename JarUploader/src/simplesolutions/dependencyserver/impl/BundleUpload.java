@@ -0,0 +1,297 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The Class BundleUpload.
+ * <p>
+ * A bundle file received over HTTP. The request body is streamed straight to
+ * a temporary file while, in the same pass, its SHA-1 is computed and it's
+ * read as a zip to find and parse its manifest, so nothing has to be read
+ * again before publishing it (see {@link BundleDatabase#publish}). The
+ * temporary file lives outside the repository folder, so the folder watcher
+ * never sees a half written jar.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class BundleUpload {
+
+	/** The folder where uploads are written before being published. */
+	public static final String UPLOAD_FOLDER = "uploads";
+
+	/** The temporary file. */
+	private final Path file;
+
+	/** The file size. */
+	private final long size;
+
+	/** The SHA-1 of the file. */
+	private final String contentHash;
+
+	/** The manifest, or null if the file isn't a jar with a manifest. */
+	private final BundleManifest manifest;
+
+	/**
+	 * Instantiates a new bundle upload.
+	 *
+	 * @param file
+	 *            the temporary file
+	 * @param size
+	 *            the file size
+	 * @param contentHash
+	 *            the SHA-1 of the file
+	 * @param manifest
+	 *            the manifest, or null if none
+	 */
+	private BundleUpload(Path file, long size, String contentHash,
+			BundleManifest manifest) {
+		this.file = file;
+		this.size = size;
+		this.contentHash = contentHash;
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Receives a bundle file.
+	 *
+	 * @param body
+	 *            the request body
+	 * @param length
+	 *            the body length
+	 * @return the upload, to be published or discarded
+	 * @throws IOException
+	 *             Signals that the body couldn't be read or written; no
+	 *             temporary file is left behind.
+	 */
+	public static BundleUpload receive(InputStream body, long length)
+			throws IOException {
+		Path folder = Paths.get(UPLOAD_FOLDER);
+		Files.createDirectories(folder);
+		/*
+		 * Unlike Files.createTempFile, this keeps the default permissions,
+		 * the file ends up in the repository.
+		 */
+		Path file = File.createTempFile("upload", ".jar", folder.toFile())
+				.toPath();
+		boolean received = false;
+		try {
+			FileOutputStream fileOut = new FileOutputStream(file.toFile());
+			TeeInputStream tee;
+			BundleManifest manifest;
+			try {
+				tee = new TeeInputStream(body, fileOut);
+				manifest = readManifest(tee);
+				/*
+				 * Whatever follows the last entry (the central directory).
+				 */
+				byte[] buffer = new byte[64 * 1024];
+				while (tee.read(buffer) >= 0)
+					;
+				if (tee.count != length)
+					throw new IOException("Upload truncated, " + tee.count
+							+ " of " + length + " bytes received.");
+				fileOut.getChannel().force(true);
+			} finally {
+				fileOut.close();
+			}
+			if (manifest == null)
+				/*
+				 * Some valid jars can't be read as a stream (ex.: stored
+				 * entries followed by a data descriptor), read its central
+				 * directory instead.
+				 */
+				manifest = JarLoader.readManifest(file.toString());
+			received = true;
+			return new BundleUpload(file, tee.count, JarLoader.toHex(tee.digest
+					.digest()), manifest);
+		} finally {
+			if (!received)
+				Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Reads the manifest of a zip stream, inflating (and so checking the CRC
+	 * of) every entry on the way.
+	 *
+	 * @param in
+	 *            the zip stream
+	 * @return the manifest, or null if it wasn't found or the stream isn't a
+	 *         readable zip.
+	 * @throws IOException
+	 *             Signals that the stream couldn't be read.
+	 */
+	private static BundleManifest readManifest(TeeInputStream in)
+			throws IOException {
+		/*
+		 * The zip stream must not close the request body.
+		 */
+		ZipInputStream zip = new ZipInputStream(new FilterInputStream(in) {
+			@Override
+			public void close() {
+			}
+		});
+		BundleManifest manifest = null;
+		try {
+			byte[] buffer = new byte[8 * 1024];
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				if (manifest == null
+						&& entry.getName().equalsIgnoreCase(
+								"META-INF/MANIFEST.MF")) {
+					ByteArrayOutputStream content = new ByteArrayOutputStream();
+					int len;
+					while ((len = zip.read(buffer)) > 0)
+						content.write(buffer, 0, len);
+					manifest = BundleManifest.parse(content.toByteArray());
+				} else
+					while (zip.read(buffer) > 0)
+						;
+			}
+		} catch (IOException e) {
+			/*
+			 * Not a readable zip, unless it's the body that failed.
+			 */
+			if (in.failure != null)
+				throw in.failure;
+			return null;
+		}
+		if (in.failure != null)
+			throw in.failure;
+		return manifest;
+	}
+
+	/**
+	 * Checks if the file is a jar with a manifest.
+	 *
+	 * @return true, if it can be published
+	 */
+	public boolean isBundle() {
+		return manifest != null;
+	}
+
+	/**
+	 * Gets the temporary file.
+	 *
+	 * @return the file
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the file size.
+	 *
+	 * @return the size
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the SHA-1 of the file.
+	 *
+	 * @return the hex content hash
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * Gets the manifest.
+	 *
+	 * @return the manifest, or null if the file isn't a jar with a manifest.
+	 */
+	public BundleManifest getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * Deletes the temporary file, if it wasn't published.
+	 */
+	public void discard() {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Copies everything read to a file and a digest. Read errors are
+	 * remembered, so they aren't mistaken for a corrupted zip.
+	 */
+	private final static class TeeInputStream extends FilterInputStream {
+		private final OutputStream copy;
+		private final MessageDigest digest;
+		private long count;
+		private IOException failure;
+
+		/**
+		 * Instantiates a new tee input stream.
+		 *
+		 * @param in
+		 *            the stream to read
+		 * @param copy
+		 *            where to copy everything read
+		 */
+		public TeeInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
+			try {
+				this.digest = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n;
+			try {
+				n = super.read(b, off, len);
+				if (n > 0)
+					copy.write(b, off, n);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+			if (n > 0) {
+				digest.update(b, off, n);
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(n, 8 * 1024)];
+			int read = read(buffer, 0, buffer.length);
+			return Math.max(read, 0);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
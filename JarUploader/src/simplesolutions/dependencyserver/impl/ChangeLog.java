@@ -0,0 +1,219 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Class ChangeLog.
+ * <p>
+ * Remembers which bundle files each registry generation touched, so that a
+ * client knowing an older generation can be told only what changed since
+ * then. Only the last generations are kept; a client older than that must
+ * read the whole registry again.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class ChangeLog {
+
+	/**
+	 * The changes between a generation known by a client and a registry
+	 * snapshot.
+	 */
+	public final static class Changes {
+
+		/** The generation the changes lead to. */
+		private final long generation;
+
+		/** If the changes are unknown and the whole registry must be read. */
+		private final boolean reset;
+
+		/** The bundles added. */
+		private final List<JarBundleFile> added = new ArrayList<JarBundleFile>();
+
+		/** The bundles whose file changed. */
+		private final List<JarBundleFile> modified = new ArrayList<JarBundleFile>();
+
+		/** The file names of the bundles removed. */
+		private final List<String> removed = new ArrayList<String>();
+
+		/**
+		 * Instantiates new changes.
+		 *
+		 * @param generation
+		 *            the generation the changes lead to
+		 * @param reset
+		 *            if the changes are unknown
+		 */
+		private Changes(long generation, boolean reset) {
+			this.generation = generation;
+			this.reset = reset;
+		}
+
+		/**
+		 * Gets the generation the changes lead to.
+		 *
+		 * @return the generation
+		 */
+		public long getGeneration() {
+			return generation;
+		}
+
+		/**
+		 * Checks if the changes are unknown, the generation asked being too
+		 * old or from another run of the server.
+		 *
+		 * @return true, if the whole registry must be read again
+		 */
+		public boolean isReset() {
+			return reset;
+		}
+
+		/**
+		 * Checks if nothing changed.
+		 *
+		 * @return true, if empty
+		 */
+		public boolean isEmpty() {
+			return !reset && added.isEmpty() && modified.isEmpty()
+					&& removed.isEmpty();
+		}
+
+		/**
+		 * Gets the bundles added.
+		 *
+		 * @return the added bundles
+		 */
+		public List<JarBundleFile> getAdded() {
+			return added;
+		}
+
+		/**
+		 * Gets the bundles whose file changed.
+		 *
+		 * @return the modified bundles
+		 */
+		public List<JarBundleFile> getModified() {
+			return modified;
+		}
+
+		/**
+		 * Gets the file names of the bundles removed.
+		 *
+		 * @return the removed file names
+		 */
+		public List<String> getRemoved() {
+			return removed;
+		}
+	}
+
+	/** How many generations are remembered by default. */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** How many generations are remembered. */
+	private final int capacity;
+
+	/**
+	 * The files touched by each remembered generation, oldest first, each file
+	 * name mapped to whether it was registered before that generation.
+	 */
+	private final LinkedList<Map<String, Boolean>> entries = new LinkedList<Map<String, Boolean>>();
+
+	/** The generation of the last entry, 0 if there are none. */
+	private long lastGeneration = 0;
+
+	/**
+	 * Instantiates a new change log remembering the default number of
+	 * generations.
+	 */
+	public ChangeLog() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Instantiates a new change log.
+	 *
+	 * @param capacity
+	 *            how many generations are remembered
+	 */
+	public ChangeLog(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Records what a generation changed. Generations must be recorded in
+	 * order, without gaps.
+	 *
+	 * @param previous
+	 *            the snapshot the changes were applied to
+	 * @param added
+	 *            the bundles added or modified
+	 * @param removed
+	 *            the file names of the bundles removed
+	 */
+	public synchronized void record(RegistrySnapshot previous,
+			Collection<JarBundleFile> added, Collection<String> removed) {
+		Map<String, JarBundleFile> before = previous.getBundles();
+		Map<String, Boolean> touched = new HashMap<String, Boolean>();
+		for (String fileName : removed)
+			touched.put(fileName, before.containsKey(fileName));
+		for (JarBundleFile bundle : added)
+			touched.put(bundle.getName(),
+					before.containsKey(bundle.getName()));
+		entries.addLast(touched);
+		if (entries.size() > capacity)
+			entries.removeFirst();
+		lastGeneration = previous.getGeneration() + 1;
+	}
+
+	/**
+	 * Computes what changed since a generation. A file touched several times
+	 * is reported once, by comparing whether it was registered at that
+	 * generation with whether it's registered in the snapshot.
+	 *
+	 * @param runId
+	 *            the run id of the generation known by the client, see
+	 *            {@link RegistrySnapshot#getRunId()}
+	 * @param since
+	 *            the generation known by the client
+	 * @param snapshot
+	 *            the snapshot the changes lead to, recorded in this log
+	 * @return the changes
+	 */
+	public synchronized Changes getChangesSince(long runId, long since,
+			RegistrySnapshot snapshot) {
+		long generation = snapshot.getGeneration();
+		long oldest = lastGeneration - entries.size();
+		/*
+		 * Whatever changed while the server was down isn't in this log.
+		 */
+		if (runId != snapshot.getRunId() || since < oldest
+				|| since > generation || generation > lastGeneration)
+			return new Changes(generation, true);
+		Changes changes = new Changes(generation, false);
+		Map<String, Boolean> existedBefore = new HashMap<String, Boolean>();
+		long entryGeneration = oldest;
+		for (Map<String, Boolean> touched : entries) {
+			entryGeneration++;
+			if (entryGeneration <= since)
+				continue;
+			if (entryGeneration > generation)
+				break;
+			for (Map.Entry<String, Boolean> e : touched.entrySet())
+				if (!existedBefore.containsKey(e.getKey()))
+					existedBefore.put(e.getKey(), e.getValue());
+		}
+		Map<String, JarBundleFile> bundles = snapshot.getBundles();
+		for (Map.Entry<String, Boolean> e : existedBefore.entrySet()) {
+			JarBundleFile bundle = bundles.get(e.getKey());
+			if (bundle != null)
+				(e.getValue() ? changes.modified : changes.added).add(bundle);
+			else if (e.getValue())
+				changes.removed.add(e.getKey());
+		}
+		return changes;
+	}
+}
@@ -0,0 +1,590 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Version;
+
+import simplesolutions.dependencyserver.impl.JarBundleFile.PackageVersion;
+import simplesolutions.dependencyserver.impl.JarBundleFile.PackageVersion.ComparisonMethod;
+
+/**
+ * The Class CompactIndex.
+ * <p>
+ * A binary alternative to contents.xml, a fraction of its size and parsed
+ * without any XML machinery. Every string (file names, package names,
+ * qualifiers) is written once in a string table and then referred to by its
+ * position, versions are packed as their numeric components, and every
+ * number is a variable length integer. An index is either the whole registry
+ * at a generation, or a delta: what changed between two generations, so a
+ * client holding an older index only downloads a small patch. Generations
+ * restart with every run of the server, so every index also carries the run
+ * id, and a delta only applies to an index of the same run.
+ * <p>
+ * The format, every integer being an unsigned LEB128 varint:
+ *
+ * <pre>
+ * int    magic "JRCI"
+ * byte   format version
+ * byte   0 = full index, 1 = delta
+ * varint run id
+ * varint base generation (0 for a full index)
+ * varint generation
+ * varint string count, then each string as in DataOutput.writeUTF
+ * varint removed bundle count, then the string index of each file name
+ * varint bundle count, then for each bundle added or modified:
+ *        name, size, last modified, a 0 byte or 1 and the 20 bytes SHA-1,
+ *        export count, then package name and version of each export,
+ *        import count, then package name and version of each import
+ * version: a flags byte (range, min exclusive, max exclusive, optional),
+ *        major, minor, micro and qualifier (string index + 1, 0 if none) of
+ *        the min version, then of the max version if a range.
+ * </pre>
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class CompactIndex {
+
+	/** The Constant FILE_NAME, as the index is served. */
+	public static final String FILE_NAME = "contents.idx";
+
+	/** The magic number every index starts with. */
+	private static final int MAGIC = 0x4A524349;
+
+	/** The version of the format. */
+	private static final int FORMAT_VERSION = 2;
+
+	/** Type of a full index. */
+	private static final byte TYPE_FULL = 0;
+
+	/** Type of a delta. */
+	private static final byte TYPE_DELTA = 1;
+
+	/** Version flag: the version is a range. */
+	private static final int FLAG_RANGE = 1;
+
+	/** Version flag: the min version is excluded from the range. */
+	private static final int FLAG_MIN_EXCLUSIVE = 2;
+
+	/** Version flag: the max version is excluded from the range. */
+	private static final int FLAG_MAX_EXCLUSIVE = 4;
+
+	/** Version flag: the import is optional. */
+	private static final int FLAG_OPTIONAL = 8;
+
+	/** The full index of the last snapshot asked for. */
+	private static volatile Encoded lastFull;
+
+	/**
+	 * An encoded index and the snapshot it was encoded from.
+	 */
+	public final static class Encoded {
+
+		/** The snapshot. */
+		private final RegistrySnapshot snapshot;
+
+		/** The index bytes. */
+		private final byte[] content;
+
+		/** The entity tag of the index. */
+		private final String eTag;
+
+		/**
+		 * The deltas leading to the snapshot of a full index, by base
+		 * generation. Clients polling together all ask the same few deltas.
+		 */
+		private final ConcurrentMap<Long, Encoded> deltas = new ConcurrentHashMap<Long, Encoded>();
+
+		/**
+		 * Instantiates a new encoded index.
+		 *
+		 * @param snapshot
+		 *            the snapshot
+		 * @param content
+		 *            the index bytes
+		 */
+		private Encoded(RegistrySnapshot snapshot, byte[] content) {
+			this.snapshot = snapshot;
+			this.content = content;
+			String hash = null;
+			try {
+				hash = "\""
+						+ JarLoader.toHex(MessageDigest.getInstance("SHA-1")
+								.digest(content)) + "\"";
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+			}
+			this.eTag = hash;
+		}
+
+		/**
+		 * Gets the index bytes. The array must not be modified.
+		 *
+		 * @return the content
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * Gets the strong HTTP entity tag of the index.
+		 *
+		 * @return the quoted entity tag, or null if unknown
+		 */
+		public String getETag() {
+			return eTag;
+		}
+	}
+
+	/**
+	 * Gets the full index of a snapshot. The last one encoded is reused.
+	 *
+	 * @param snapshot
+	 *            the registry snapshot
+	 * @return the encoded index
+	 */
+	public static Encoded getFullIndex(RegistrySnapshot snapshot) {
+		Encoded full = lastFull;
+		if (full == null || full.snapshot != snapshot) {
+			full = new Encoded(snapshot, encode(snapshot.getRunId(),
+					snapshot.getGeneration(), 0, TYPE_FULL, snapshot.getBundles().values(),
+					new ArrayList<String>()));
+			lastFull = full;
+		}
+		return full;
+	}
+
+	/**
+	 * Gets the delta leading from a generation to a snapshot, or the full
+	 * index if that generation isn't remembered anymore or belongs to another
+	 * run.
+	 *
+	 * @param runId
+	 *            the run id of the generation held by the client
+	 * @param since
+	 *            the generation held by the client
+	 * @param snapshot
+	 *            the registry snapshot
+	 * @param changes
+	 *            the changes since that generation, see
+	 *            {@link ChangeLog#getChangesSince(long, long, RegistrySnapshot)}
+	 * @return the encoded delta or full index
+	 */
+	public static Encoded getDelta(long runId, long since,
+			RegistrySnapshot snapshot, ChangeLog.Changes changes) {
+		Encoded full = getFullIndex(snapshot);
+		if (changes.isReset() || runId != snapshot.getRunId())
+			return full;
+		Encoded delta = full.deltas.get(since);
+		if (delta == null) {
+			delta = newDelta(since, snapshot, changes);
+			full.deltas.put(since, delta);
+		}
+		return delta;
+	}
+
+	/**
+	 * Encodes a delta.
+	 *
+	 * @param since
+	 *            the base generation
+	 * @param snapshot
+	 *            the registry snapshot
+	 * @param changes
+	 *            the changes since the base generation
+	 * @return the encoded delta
+	 */
+	private static Encoded newDelta(long since, RegistrySnapshot snapshot,
+			ChangeLog.Changes changes) {
+		List<JarBundleFile> changed = new ArrayList<JarBundleFile>(
+				changes.getAdded());
+		changed.addAll(changes.getModified());
+		return new Encoded(snapshot, encode(snapshot.getRunId(),
+				snapshot.getGeneration(), since, TYPE_DELTA, changed,
+				changes.getRemoved()));
+	}
+
+	/**
+	 * Encodes an index.
+	 *
+	 * @param runId
+	 *            the run id
+	 * @param generation
+	 *            the generation
+	 * @param baseGeneration
+	 *            the base generation of a delta
+	 * @param type
+	 *            full or delta
+	 * @param bundles
+	 *            the bundles added or modified (every bundle, if full)
+	 * @param removed
+	 *            the file names of the bundles removed
+	 * @return the index bytes
+	 */
+	private static byte[] encode(long runId, long generation,
+			long baseGeneration,
+			byte type, Collection<JarBundleFile> bundles,
+			Collection<String> removed) {
+		try {
+			/*
+			 * The body is written first, collecting the strings, so the
+			 * string table can precede it.
+			 */
+			Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(body);
+			writeVarLong(out, removed.size());
+			for (String fileName : removed)
+				writeVarLong(out, stringIndex(strings, fileName));
+			writeVarLong(out, bundles.size());
+			for (JarBundleFile bundle : bundles)
+				writeBundle(bundle, strings, out);
+			out.flush();
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					body.size() + strings.size() * 24 + 32);
+			out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			out.writeByte(type);
+			writeVarLong(out, runId);
+			writeVarLong(out, baseGeneration);
+			writeVarLong(out, generation);
+			writeVarLong(out, strings.size());
+			for (String s : strings.keySet())
+				out.writeUTF(s);
+			body.writeTo(out);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // Can't happen in memory.
+		}
+	}
+
+	/**
+	 * Writes a bundle.
+	 *
+	 * @param bundle
+	 *            the bundle
+	 * @param strings
+	 *            the string table
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeBundle(JarBundleFile bundle,
+			Map<String, Integer> strings, DataOutputStream out)
+			throws IOException {
+		writeVarLong(out, stringIndex(strings, bundle.getName()));
+		writeVarLong(out, bundle.getSize());
+		writeVarLong(out, Math.max(bundle.getLastModified(), 0));
+		String hash = bundle.getContentHash();
+		if (hash != null && hash.length() == 40) {
+			out.writeByte(1);
+			for (int i = 0; i < 40; i += 2)
+				out.writeByte(Integer.parseInt(hash.substring(i, i + 2), 16));
+		} else
+			out.writeByte(0);
+		writeVarLong(out, bundle.getExportedPackages().size());
+		for (Map.Entry<String, PackageVersion> e : bundle.getExportedPackages()
+				.entrySet()) {
+			writeVarLong(out, stringIndex(strings, e.getKey()));
+			writeVersion(e.getValue(), false, strings, out);
+		}
+		writeVarLong(out, bundle.getImportedPackages().size());
+		for (Map.Entry<String, PackageVersion> e : bundle.getImportedPackages()
+				.entrySet()) {
+			writeVarLong(out, stringIndex(strings, e.getKey()));
+			writeVersion(e.getValue(), bundle.isOptionalImport(e.getKey()),
+					strings, out);
+		}
+	}
+
+	/**
+	 * Writes a packed version or version range.
+	 *
+	 * @param version
+	 *            the version
+	 * @param optional
+	 *            if it's the version of an optional import
+	 * @param strings
+	 *            the string table
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeVersion(PackageVersion version, boolean optional,
+			Map<String, Integer> strings, DataOutputStream out)
+			throws IOException {
+		int flags = optional ? FLAG_OPTIONAL : 0;
+		if (version.isVersionRange()) {
+			flags |= FLAG_RANGE;
+			if (version.getMinVersionComparisonMethod() == ComparisonMethod.GREATER)
+				flags |= FLAG_MIN_EXCLUSIVE;
+			if (version.getMaxVersionComparisonMethod() == ComparisonMethod.LOWER)
+				flags |= FLAG_MAX_EXCLUSIVE;
+		}
+		out.writeByte(flags);
+		writeVersion(version.getMinVersion(), strings, out);
+		if (version.isVersionRange())
+			writeVersion(version.getMaxVersion(), strings, out);
+	}
+
+	/**
+	 * Writes the components of a version.
+	 *
+	 * @param version
+	 *            the version
+	 * @param strings
+	 *            the string table
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeVersion(Version version,
+			Map<String, Integer> strings, DataOutputStream out)
+			throws IOException {
+		writeVarLong(out, version.getMajor());
+		writeVarLong(out, version.getMinor());
+		writeVarLong(out, version.getMicro());
+		String qualifier = version.getQualifier();
+		writeVarLong(out, qualifier.length() == 0 ? 0 : stringIndex(strings,
+				qualifier) + 1);
+	}
+
+	/**
+	 * Gets the position of a string in the string table, adding it if needed.
+	 *
+	 * @param strings
+	 *            the string table
+	 * @param s
+	 *            the string
+	 * @return the position
+	 */
+	private static int stringIndex(Map<String, Integer> strings, String s) {
+		Integer index = strings.get(s);
+		if (index == null) {
+			index = strings.size();
+			strings.put(s, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Writes an unsigned variable length integer, 7 bits per byte.
+	 *
+	 * @param out
+	 *            the stream to write to
+	 * @param value
+	 *            the value, not negative
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeVarLong(DataOutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads an unsigned variable length integer.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @return the value
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable length integer.");
+	}
+
+	/**
+	 * Gets the run id of an index, to be given back with its generation when
+	 * asking the next delta.
+	 *
+	 * @param index
+	 *            the index bytes
+	 * @return the run id
+	 * @throws IOException
+	 *             Signals that the index is malformed.
+	 */
+	public static long getRunId(byte[] index) throws IOException {
+		DataInputStream in = readHeader(index);
+		in.readByte();
+		return readVarLong(in);
+	}
+
+	/**
+	 * Applies an index to the bundles a client holds: a full index replaces
+	 * them, a delta patches them.
+	 *
+	 * @param index
+	 *            the index bytes
+	 * @param runId
+	 *            the run id of the bundles held, checked against the run of a
+	 *            delta
+	 * @param generation
+	 *            the generation of the bundles held, checked against the base
+	 *            of a delta
+	 * @param bundles
+	 *            the bundles held, by file name, to be updated
+	 * @return the generation of the bundles after the index is applied, the
+	 *         run id being {@link #getRunId(byte[])}
+	 * @throws IOException
+	 *             Signals that the index is malformed or is a delta from
+	 *             another generation or run.
+	 */
+	public static long apply(byte[] index, long runId, long generation,
+			Map<String, JarBundleFile> bundles) throws IOException {
+		DataInputStream in = readHeader(index);
+		byte type = in.readByte();
+		long indexRunId = readVarLong(in);
+		long baseGeneration = readVarLong(in);
+		long newGeneration = readVarLong(in);
+		if (type == TYPE_DELTA && indexRunId != runId)
+			throw new IOException("Delta from run " + indexRunId + ", not "
+					+ runId + ".");
+		if (type == TYPE_DELTA && baseGeneration != generation)
+			throw new IOException("Delta from generation " + baseGeneration
+					+ ", not " + generation + ".");
+		String[] strings = new String[(int) readVarLong(in)];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = in.readUTF();
+		Map<String, JarBundleFile> result = type == TYPE_FULL ? new HashMap<String, JarBundleFile>()
+				: new HashMap<String, JarBundleFile>(bundles);
+		long count = readVarLong(in);
+		for (long i = 0; i < count; i++)
+			result.remove(strings[(int) readVarLong(in)]);
+		count = readVarLong(in);
+		for (long i = 0; i < count; i++) {
+			JarBundleFile bundle = readBundle(in, strings);
+			result.put(bundle.getName(), bundle);
+		}
+		bundles.clear();
+		bundles.putAll(result);
+		return newGeneration;
+	}
+
+	/**
+	 * Opens an index and checks its magic number and format version.
+	 *
+	 * @param index
+	 *            the index bytes
+	 * @return the stream, positioned at the index type
+	 * @throws IOException
+	 *             Signals that the bytes aren't a compact index.
+	 */
+	private static DataInputStream readHeader(byte[] index)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				index));
+		if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION)
+			throw new IOException("Not a compact index.");
+		return in;
+	}
+
+	/**
+	 * Reads a bundle.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @param strings
+	 *            the string table
+	 * @return the bundle
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static JarBundleFile readBundle(DataInputStream in,
+			String[] strings) throws IOException {
+		String name = strings[(int) readVarLong(in)];
+		long size = readVarLong(in);
+		long lastModified = readVarLong(in);
+		String contentHash = null;
+		if (in.readByte() != 0) {
+			byte[] hash = new byte[20];
+			in.readFully(hash);
+			contentHash = JarLoader.toHex(hash);
+		}
+		String[] exportedPackages = new String[(int) readVarLong(in)];
+		for (int i = 0; i < exportedPackages.length; i++)
+			exportedPackages[i] = strings[(int) readVarLong(in)]
+					+ readVersion(in, strings);
+		String[] importedPackages = new String[(int) readVarLong(in)];
+		for (int i = 0; i < importedPackages.length; i++)
+			importedPackages[i] = strings[(int) readVarLong(in)]
+					+ readVersion(in, strings);
+		return new JarBundleFile(name, importedPackages, exportedPackages,
+				size, lastModified, contentHash);
+	}
+
+	/**
+	 * Reads a packed version or version range.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @param strings
+	 *            the string table
+	 * @return the version parameters of a package descriptor, ex.:
+	 *         <i>;version="[1.0.0,2.0.0)";resolution:=optional</i>
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static String readVersion(DataInputStream in, String[] strings)
+			throws IOException {
+		int flags = in.readUnsignedByte();
+		String version = readVersionComponents(in, strings);
+		if ((flags & FLAG_RANGE) != 0)
+			version = ((flags & FLAG_MIN_EXCLUSIVE) != 0 ? "(" : "[")
+					+ version + "," + readVersionComponents(in, strings)
+					+ ((flags & FLAG_MAX_EXCLUSIVE) != 0 ? ")" : "]");
+		return ";version=\"" + version + "\""
+				+ ((flags & FLAG_OPTIONAL) != 0 ? ";resolution:=optional" : "");
+	}
+
+	/**
+	 * Reads the components of a version.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @param strings
+	 *            the string table
+	 * @return the version, ex.: <i>1.2.3.qualifier</i>
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static String readVersionComponents(DataInputStream in,
+			String[] strings) throws IOException {
+		String version = readVarLong(in) + "." + readVarLong(in) + "."
+				+ readVarLong(in);
+		int qualifier = (int) readVarLong(in);
+		return qualifier == 0 ? version : version + "."
+				+ strings[qualifier - 1];
+	}
+}
@@ -1,13 +1,20 @@
 package simplesolutions.dependencyserver.impl;
 
-import java.io.DataOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
+import simplesolutions.util.ChannelOutputStream;
+import simplesolutions.util.HttpDate;
 import simplesolutions.util.HttpPortListener;
+import simplesolutions.util.HttpRequest;
 
 /**
  * This is a HTTP Server, it has a listener that listens for port 80 and manages
@@ -17,11 +24,62 @@ import simplesolutions.util.HttpPortListener;
  * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
  * 
  */
-public final class HttpServer extends Thread {
+public final class HttpServer extends Thread implements
+		BundleDatabase.ChangeListener {
 	/*
 	 * The listener that will accept client connections on port 80
 	 */
 	private HttpPortListener listener;
+	/*
+	 * The path prefix of the requests asking only which bundle provides a
+	 * package
+	 */
+	private static final String RESOLVE_PATH = "/resolve/";
+	/*
+	 * The path of the requests asking every bundle needed by a list of
+	 * packages
+	 */
+	private static final String CLOSURE_PATH = "/closure";
+	/*
+	 * The path of the requests downloading every bundle needed by a list of
+	 * packages as a single archive
+	 */
+	private static final String ARCHIVE_PATH = "/archive";
+	/*
+	 * The path of the requests asking what changed since a generation
+	 */
+	private static final String CHANGES_PATH = "/changes";
+	/*
+	 * The path of the requests asking the server statistics
+	 */
+	private static final String STATS_PATH = "/stats";
+	/*
+	 * The path prefix of the requests uploading a bundle
+	 */
+	private static final String UPLOAD_PATH = "/jars/";
+	/*
+	 * The biggest bundle we accept to receive
+	 */
+	private static final long MAX_UPLOAD_SIZE = Long.getLong(
+			"jarrepository.maxUploadSize", 256 * 1024 * 1024);
+	/*
+	 * How long a request for changes waits for something to change, in
+	 * milliseconds
+	 */
+	private final long changesTimeout;
+	/*
+	 * The bytes of the most downloaded bundles
+	 */
+	private final BundleCache bundleCache;
+	/*
+	 * The biggest list of import clauses we accept to resolve at once
+	 */
+	private static final int MAX_RESOLVE_REQUEST_SIZE = 1024 * 1024;
+	/*
+	 * The most byte ranges we serve in one response, beyond that the whole
+	 * file is sent
+	 */
+	private static final int MAX_RANGES = 32;
 	/*
 	 * The HTTP 200 response header sent in every bundle page
 	 */
@@ -32,10 +90,37 @@ public final class HttpServer extends Thread {
 	 * 
 	 * @param port
 	 *            the port number
+	 * @param keepAliveTimeout
+	 *            how long an idle persistent connection is kept open, in
+	 *            milliseconds
+	 * @param maxKeepAliveRequests
+	 *            the maximum number of requests served per connection
+	 * @param changesTimeout
+	 *            how long a request for changes waits for something to
+	 *            change, in milliseconds
+	 * @param bundleCacheSize
+	 *            the memory used to cache the most downloaded bundles, in
+	 *            bytes
 	 */
-	public HttpServer(int port) {
+	public HttpServer(int port, long keepAliveTimeout,
+			int maxKeepAliveRequests, long changesTimeout, long bundleCacheSize) {
 		super("Http Server");
-		listener = new HttpPortListener(port, this);
+		this.changesTimeout = changesTimeout;
+		this.bundleCache = new BundleCache(bundleCacheSize);
+		listener = new HttpPortListener(port, this, keepAliveTimeout,
+				maxKeepAliveRequests);
+	}
+
+	/**
+	 * Implementing BundleDatabase.ChangeListener: the bundles replaced are
+	 * dropped from the cache and the requests waiting for changes are
+	 * answered.
+	 */
+	@Override
+	public void registryChanged(RegistrySnapshot snapshot) {
+		bundleCache.invalidate(snapshot);
+		BundleArchive.invalidate(snapshot);
+		listener.resumeSuspended();
 	}
 
 	/**
@@ -63,84 +148,1172 @@ public final class HttpServer extends Thread {
 	 * Given a relative URL (such as /, /SmartCampus, etc.) this method looks
 	 * for an installed bundle accepting this URL and asks him to render a page
 	 * (in HTML).
+	 * <p>
+	 * Every response is framed with a Content-Length so that the connection
+	 * can be kept alive for the client's next request.
 	 * 
-	 * @param url
+	 * @param request
+	 *            the client request
 	 * @param out
-	 * @return
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred, the connection
+	 *             must be closed.
 	 */
-	public void getPackageFile(String url, DataOutputStream out) {
+	public void getPackageFile(HttpRequest request, ChannelOutputStream out)
+			throws IOException {
+		String url = request.getUrl();
+		/*
+		 * Every lookup of this request is done on the same registry snapshot.
+		 */
+		RegistrySnapshot snapshot = Main.getJarRegistry().getSnapshot();
+		long generation = snapshot.getGeneration();
+		/*
+		 * Is the client asking which bundles provide a list of packages?
+		 */
+		if (request.getMethod().equals("POST")
+				&& (url.equals(RESOLVE_PATH) || url.equals("/resolve"))) {
+			resolveAll(request, snapshot, out);
+			return;
+		}
+		/*
+		 * Is the client asking every bundle needed by a list of packages?
+		 */
+		if (request.getMethod().equals("POST") && url.equals(CLOSURE_PATH)) {
+			resolveClosure(request, snapshot, out);
+			return;
+		}
+		/*
+		 * Is the client downloading every bundle needed by a list of
+		 * packages?
+		 */
+		if (request.getMethod().equals("POST") && url.equals(ARCHIVE_PATH)) {
+			sendArchive(request, snapshot, out);
+			return;
+		}
+		/*
+		 * Is the client uploading a bundle?
+		 */
+		if ((request.getMethod().equals("PUT") || request.getMethod().equals(
+				"POST"))
+				&& url.startsWith(UPLOAD_PATH)) {
+			upload(request, url.substring(UPLOAD_PATH.length()), out);
+			return;
+		}
+		/*
+		 * We only serve files, HEAD is a GET without the body.
+		 */
+		if (!request.getMethod().equals("GET")
+				&& !request.getMethod().equals("HEAD")) {
+			sendBody(request, generation, "405 Method Not Allowed",
+					"Allow: GET, HEAD\r\n", new byte[0], out);
+			return;
+		}
+		/*
+		 * Is the client only asking which bundle provides a package?
+		 */
+		if (url.startsWith(RESOLVE_PATH)) {
+			resolve(request, snapshot, url.substring(RESOLVE_PATH.length()),
+					out);
+			return;
+		}
+		/*
+		 * Is the client asking what changed since a generation?
+		 */
+		if (url.equals(CHANGES_PATH) || url.startsWith(CHANGES_PATH + "?")) {
+			changes(request, snapshot, out);
+			return;
+		}
+		/*
+		 * Is the client asking the server statistics?
+		 */
+		if (url.equals(STATS_PATH)) {
+			stats(request, generation, out);
+			return;
+		}
+		/*
+		 * Is the client asking the compact index, or a delta of it?
+		 */
+		if (url.equals("/repo/" + CompactIndex.FILE_NAME)
+				|| url.startsWith("/repo/" + CompactIndex.FILE_NAME + "?")) {
+			getCompactIndex(request, snapshot, out);
+			return;
+		}
 		/*
 		 * Is the client asking the content.xml ?
 		 */
 		if (url.equals("/repo/contents.xml") || url.equals("/")) {
-			getContentsXML(out);
+			getContentsXML(request, out);
 			return;
 		}
+		/*
+		 * Remove the initial / from the url to end up only with the package
+		 * name.
+		 */
+		String[] packageNameManifest = url.replace("%22", "\"").split("/");
+		if (packageNameManifest.length >= 2
+				&& !JarBundleFile.PackageVersion
+						.isValid(packageNameManifest[1])) {
+			sendMalformedClause(request, generation, packageNameManifest[1],
+					out);
+			return;
+		}
+		JarBundleFile bundle = packageNameManifest.length < 2 ? null
+				: Main.getJarRegistry().getBundleProvidingPackage(snapshot,
+						packageNameManifest[1]);
+		/*
+		 * Package found?
+		 */
+		if (bundle == null) {
+			sendBody(request, generation, "404 Not Found", "", new byte[0], out);
+			return;
+		}
+		String packagePath = bundle.getName();
+		String validators = validators(bundle.getETag(),
+				bundle.getLastModified());
+		/*
+		 * Does the client have this very same file already?
+		 */
+		if (isNotModified(request, bundle.getETag(), bundle.getLastModified())) {
+			out.writeBytes(header(request, generation, "304 Not Modified", validators, -1));
+			return;
+		}
+		/*
+		 * Let us send the file to the client.
+		 */
+		ByteBuffer cached = request.getMethod().equals("HEAD") ? null
+				: bundleCache.get(bundle);
+		sendFile(packagePath, cached, request, generation,
+				"application/force-download",
+				"Content-Disposition: attachment; filename=\""
+						+ getFileName(bundle) + "\"\r\n" + validators,
+				bundle.getETag(), bundle.getLastModified(), out);
+	}
+
+	/**
+	 * Tells which bundle provides a package, without sending the bundle. The
+	 * response body is a properties file with the bundle file name, the
+	 * provided package version and the bundle size and SHA-1 hash, ex.:
+	 * 
+	 * <pre>
+	 * name=foo.jar
+	 * version=1.2.3
+	 * size=1234
+	 * sha1=0123456789abcdef0123456789abcdef01234567
+	 * </pre>
+	 * 
+	 * A clause whose version can't be parsed is answered with 400.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param snapshot
+	 *            the registry snapshot to look into
+	 * @param importClause
+	 *            the package name in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i>
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void resolve(HttpRequest request, RegistrySnapshot snapshot,
+			String importClause, ChannelOutputStream out) throws IOException {
+		long generation = snapshot.getGeneration();
+		importClause = importClause.replace("%22", "\"");
+		if (!JarBundleFile.PackageVersion.isValid(importClause)) {
+			sendMalformedClause(request, generation, importClause, out);
+			return;
+		}
+		JarBundleFile bundle = Main.getJarRegistry().getBundleProvidingPackage(
+				snapshot, importClause);
+		if (bundle == null) {
+			sendBody(request, generation, "404 Not Found", "", new byte[0], out);
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		describe(bundle, importClause, "", sb);
+		sendBody(request, generation, "200 OK",
+				"Content-Type: text/plain; charset=ISO-8859-1\r\n", sb
+						.toString().getBytes("ISO-8859-1"), out);
+	}
+
+	/**
+	 * Tells which bundles provide a list of packages, in a single request.
+	 * The request body has one import clause per line, the response is a
+	 * properties file describing the provider of each one like
+	 * {@link #resolve(HttpRequest, RegistrySnapshot, String, ChannelOutputStream)}
+	 * does, with the keys prefixed by the line index. The clauses no bundle provides are
+	 * marked as unresolved, ex.:
+	 * 
+	 * <pre>
+	 * 0.name=foo.jar
+	 * 0.version=1.2.3
+	 * 0.size=1234
+	 * 0.sha1=0123456789abcdef0123456789abcdef01234567
+	 * 1.unresolved=true
+	 * </pre>
+	 * 
+	 * A body with a clause whose version can't be parsed is answered with
+	 * 400 instead.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param snapshot
+	 *            the registry snapshot to look into
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void resolveAll(HttpRequest request, RegistrySnapshot snapshot,
+			ChannelOutputStream out) throws IOException {
+		long generation = snapshot.getGeneration();
+		List<String> importClauses = readImportClauses(request, generation,
+				out);
+		if (importClauses == null)
+			return;
+		JarBundleFile[] bundles = Main.getJarRegistry()
+				.getBundlesProvidingPackages(snapshot, importClauses);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bundles.length; i++) {
+			if (bundles[i] == null)
+				sb.append(i + ".unresolved=true\r\n");
+			else
+				describe(bundles[i], importClauses.get(i), i + ".", sb);
+		}
+		sendBody(request, generation, "200 OK",
+				"Content-Type: text/plain; charset=ISO-8859-1\r\n", sb
+						.toString().getBytes("ISO-8859-1"), out);
+	}
+
+	/**
+	 * Computes every bundle needed at runtime by a list of packages, i.e.
+	 * their providers and transitively the providers of what those import.
+	 * The request body has one import clause per line, the response is a
+	 * properties file describing each needed bundle, prefixed by an index,
+	 * followed by the mandatory imports no bundle provides, ex.:
+	 * 
+	 * <pre>
+	 * 0.name=foo.jar
+	 * 0.size=1234
+	 * 0.sha1=0123456789abcdef0123456789abcdef01234567
+	 * 1.name=bar.jar
+	 * 1.size=4321
+	 * 1.sha1=76543210fedcba9876543210fedcba9876543210
+	 * unresolved.0=javax.lol;version="1.0"
+	 * </pre>
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param snapshot
+	 *            the registry snapshot to look into
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void resolveClosure(HttpRequest request,
+			RegistrySnapshot snapshot, ChannelOutputStream out)
+			throws IOException {
+		long generation = snapshot.getGeneration();
+		List<String> importClauses = readImportClauses(request, generation,
+				out);
+		if (importClauses == null)
+			return;
+		TransitiveResolver.Resolution resolution = snapshot
+				.getTransitiveClosure(importClauses);
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		for (JarBundleFile bundle : resolution.getBundles())
+			describe(bundle, null, (i++) + ".", sb);
+		i = 0;
+		for (String unresolved : resolution.getUnresolved())
+			sb.append("unresolved." + (i++) + "=" + unresolved + "\r\n");
+		sendBody(request, generation, "200 OK",
+				"Content-Type: text/plain; charset=ISO-8859-1\r\n", sb
+						.toString().getBytes("ISO-8859-1"), out);
+	}
+
+	/**
+	 * Sends every bundle needed at runtime by the import clauses sent in the
+	 * request body (one per line) as a single zip archive, see
+	 * {@link BundleArchive}. The imports no bundle provides are listed in the
+	 * archive comment, as <i>unresolved.N=clause</i> lines.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param snapshot
+	 *            the registry snapshot to look into
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void sendArchive(HttpRequest request, RegistrySnapshot snapshot,
+			ChannelOutputStream out) throws IOException {
+		long generation = snapshot.getGeneration();
+		List<String> importClauses = readImportClauses(request, generation,
+				out);
+		if (importClauses == null)
+			return;
+		TransitiveResolver.Resolution resolution = snapshot
+				.getTransitiveClosure(importClauses);
+		StringBuilder comment = new StringBuilder();
+		int i = 0;
+		for (String unresolved : resolution.getUnresolved())
+			comment.append("unresolved." + (i++) + "=" + unresolved + "\r\n");
+		BundleArchive archive;
 		try {
+			archive = BundleArchive.open(resolution.getBundles(),
+					comment.toString());
+		} catch (IOException e) {
 			/*
-			 * Remove the initial / from the url to end up only with the package
-			 * name.
+			 * A bundle just deleted, or too many to fit in a zip.
 			 */
-			String[] packageNameManifest = url.replace("%22", "\"").split("/");
-			String packagePath = Main.getJarRegistry().getJarProvidingPackage(
-					packageNameManifest[1]);
+			e.printStackTrace();
+			sendBody(request, generation, "503 Service Unavailable",
+					"Retry-After: 1\r\n", new byte[0], out);
+			return;
+		}
+		try {
+			out.writeBytes(header(request, generation, "200 OK",
+					"Content-Type: application/zip\r\n"
+							+ "Content-Disposition: attachment; filename=\"bundles.zip\"\r\n"
+							+ "X-Bundle-Count: " + archive.size() + "\r\n"
+							+ "X-Unresolved-Count: "
+							+ resolution.getUnresolved().size() + "\r\n",
+					archive.getLength()));
+			archive.writeTo(out);
+		} finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * Sends the server statistics as a list of properties, ex.:
+	 * 
+	 * <pre>
+	 * generation=12
+	 * bundleCache.hits=1234
+	 * bundleCache.misses=56
+	 * bundleCache.evictions=7
+	 * bundleCache.rejections=8
+	 * bundleCache.size=12345678
+	 * bundleCache.entries=42
+	 * resolutionCache.hits=9876
+	 * resolutionCache.misses=543
+	 * resolutionCache.hitRatio=0.9479
+	 * resolutionCache.entries=321
+	 * </pre>
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param generation
+	 *            the current registry generation
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void stats(HttpRequest request, long generation,
+			ChannelOutputStream out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("generation=" + generation + "\r\n");
+		sb.append("bundleCache.hits=" + bundleCache.getHits() + "\r\n");
+		sb.append("bundleCache.misses=" + bundleCache.getMisses() + "\r\n");
+		sb.append("bundleCache.evictions=" + bundleCache.getEvictions()
+				+ "\r\n");
+		sb.append("bundleCache.rejections=" + bundleCache.getRejections()
+				+ "\r\n");
+		sb.append("bundleCache.size=" + bundleCache.getSize() + "\r\n");
+		sb.append("bundleCache.entries=" + bundleCache.getEntryCount()
+				+ "\r\n");
+		ResolutionCache resolutionCache = Main.getJarRegistry()
+				.getResolutionCache();
+		sb.append("resolutionCache.hits=" + resolutionCache.getHits() + "\r\n");
+		sb.append("resolutionCache.misses=" + resolutionCache.getMisses()
+				+ "\r\n");
+		sb.append("resolutionCache.hitRatio="
+				+ String.format(Locale.ROOT, "%.4f",
+						resolutionCache.getHitRatio()) + "\r\n");
+		sb.append("resolutionCache.entries=" + resolutionCache.size()
+				+ "\r\n");
+		sendBody(request, generation, "200 OK",
+				"Content-Type: text/plain; charset=ISO-8859-1\r\n"
+						+ "Cache-Control: no-cache\r\n", sb.toString()
+						.getBytes("ISO-8859-1"), out);
+	}
+
+	/**
+	 * Answers which bundles were added, modified or removed since the
+	 * registry generation given in the <i>since</i> query parameter, along
+	 * with the run id of the server, as sent in the <i>generation</i>
+	 * property and the X-Registry-Generation header (generation 0 of this
+	 * run if absent). If nothing changed yet the request waits, without holding a
+	 * thread, until something does or the changes timeout expires, then an
+	 * empty list is sent. The answer is a list of properties, ex.:
+	 * 
+	 * <pre>
+	 * generation=8412337190:12
+	 * added.0.name=foo.jar
+	 * added.0.size=1234
+	 * added.0.sha1=0123456789abcdef0123456789abcdef01234567
+	 * modified.0.name=bar.jar
+	 * modified.0.size=4321
+	 * removed.0.name=lol.jar
+	 * </pre>
+	 * 
+	 * When the generation given is no longer remembered, or belongs to
+	 * another run of the server (or has no run id), <i>reset=true</i> is
+	 * sent instead of the lists, and the whole contents.xml must be read
+	 * again.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param snapshot
+	 *            the registry snapshot to compare with
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void changes(HttpRequest request, RegistrySnapshot snapshot,
+			ChannelOutputStream out) throws IOException {
+		long generation = snapshot.getGeneration();
+		long[] since;
+		try {
+			String value = getQueryParameter(request.getUrl(), "since");
+			since = value == null ? new long[] { snapshot.getRunId(), 0 }
+					: parseGenerationTag(value);
+		} catch (NumberFormatException e) {
+			sendBody(request, generation, "400 Bad Request", "", new byte[0],
+					out);
+			return;
+		}
+		ChangeLog.Changes changes = Main.getJarRegistry().getChangesSince(
+				since[0], since[1], snapshot);
+		if (changes.isEmpty() && !request.isExpired()) {
+			request.suspend(changesTimeout);
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("generation=" + snapshot.getGenerationTag() + "\r\n");
+		if (changes.isReset())
+			sb.append("reset=true\r\n");
+		int i = 0;
+		for (JarBundleFile bundle : changes.getAdded())
+			describe(bundle, null, "added." + (i++) + ".", sb);
+		i = 0;
+		for (JarBundleFile bundle : changes.getModified())
+			describe(bundle, null, "modified." + (i++) + ".", sb);
+		int lengthToCut = (Main.getJarsFolderName() + File.separator)
+				.length();
+		i = 0;
+		for (String fileName : changes.getRemoved())
+			sb.append("removed." + (i++) + ".name="
+					+ fileName.substring(lengthToCut) + "\r\n");
+		sendBody(request, generation, "200 OK",
+				"Content-Type: text/plain; charset=ISO-8859-1\r\n"
+						+ "Cache-Control: no-cache\r\n", sb.toString()
+						.getBytes("ISO-8859-1"), out);
+	}
+
+	/**
+	 * Parses a generation given back by a client, as sent by
+	 * {@link RegistrySnapshot#getGenerationTag()}.
+	 * 
+	 * @param value
+	 *            the run id and generation, ex.: <i>8412337190:12</i>, the
+	 *            colon possibly percent encoded. A bare generation belongs to
+	 *            no known run.
+	 * @return the run id (-1 if none) and the generation
+	 * @throws NumberFormatException
+	 *             if the value isn't a generation
+	 */
+	static long[] parseGenerationTag(String value) {
+		value = value.replace("%3A", ":").replace("%3a", ":");
+		int colon = value.indexOf(':');
+		if (colon < 0)
+			return new long[] { -1, Long.parseLong(value) };
+		return new long[] { Long.parseLong(value.substring(0, colon)),
+				Long.parseLong(value.substring(colon + 1)) };
+	}
+
+	/**
+	 * Gets a parameter of the query string of an URL.
+	 * 
+	 * @param url
+	 *            the URL
+	 * @param name
+	 *            the parameter name
+	 * @return the parameter value, or null if absent.
+	 */
+	private static String getQueryParameter(String url, String name) {
+		int query = url.indexOf('?');
+		if (query < 0)
+			return null;
+		for (String parameter : url.substring(query + 1).split("&"))
+			if (parameter.startsWith(name + "="))
+				return parameter.substring(name.length() + 1);
+		return null;
+	}
+
+	/**
+	 * Receives a bundle and publishes it in the repository folder under the
+	 * given file name, replacing any file with that name. The bundle is
+	 * registered before the response is sent, the response describes it like
+	 * {@link #resolve} does (without the version).
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param fileName
+	 *            the file name asked for
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void upload(HttpRequest request, String fileName,
+			ChannelOutputStream out) throws IOException {
+		long generation = Main.getJarRegistry().getSnapshot().getGeneration();
+		if (!isValidFileName(fileName)) {
+			request.setKeepAlive(false); // The body isn't read.
+			sendBody(request, generation, "400 Bad Request", "", new byte[0],
+					out);
+			return;
+		}
+		if (request.getHeader("Transfer-Encoding") != null
+				|| request.getContentLength() < 0) {
+			sendBody(request, generation, "411 Length Required", "",
+					new byte[0], out);
+			return;
+		}
+		if (request.getContentLength() > MAX_UPLOAD_SIZE) {
+			request.setKeepAlive(false); // The body isn't read.
+			sendBody(request, generation, "413 Request Entity Too Large", "",
+					new byte[0], out);
+			return;
+		}
+		String expect = request.getHeader("Expect");
+		if (expect != null && expect.equalsIgnoreCase("100-continue")) {
+			out.writeBytes("HTTP/1.1 100 Continue\r\n\r\n");
+			out.flush();
+		}
+		BundleUpload upload = BundleUpload.receive(request.getBody(),
+				request.getContentLength());
+		if (!upload.isBundle()) {
+			upload.discard();
+			sendBody(request, generation, "422 Unprocessable Entity",
+					"Content-Type: text/plain; charset=ISO-8859-1\r\n",
+					"Not a jar file with a manifest.\r\n"
+							.getBytes("ISO-8859-1"), out);
+			return;
+		}
+		boolean replaced = Main.getJarRegistry().getSnapshot().getBundles()
+				.containsKey(Main.getJarsFolderName() + File.separator
+						+ fileName);
+		JarBundleFile bundle;
+		try {
+			bundle = Main.getJarRegistry().publish(upload, fileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+			upload.discard();
+			sendBody(request, generation, "500 Internal Server Error", "",
+					new byte[0], out);
+			return;
+		}
+		generation = Main.getJarRegistry().getSnapshot().getGeneration();
+		StringBuilder sb = new StringBuilder();
+		describe(bundle, null, "", sb);
+		sendBody(request, generation, replaced ? "200 OK" : "201 Created",
+				"Content-Type: text/plain; charset=ISO-8859-1\r\n"
+						+ "Location: " + UPLOAD_PATH + fileName + "\r\n"
+						+ validators(bundle.getETag(), 0), sb.toString()
+						.getBytes("ISO-8859-1"), out);
+	}
+
+	/**
+	 * Checks if a file name can be used for a bundle uploaded: a jar name
+	 * without any path nor characters needing escaping.
+	 * 
+	 * @param fileName
+	 *            the file name
+	 * @return true, if valid
+	 */
+	private static boolean isValidFileName(String fileName) {
+		if (!fileName.endsWith(".jar") || fileName.startsWith(".")
+				|| fileName.length() > 255)
+			return false;
+		for (int i = 0; i < fileName.length(); i++) {
+			char c = fileName.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '.' && c != '_'
+					&& c != '-')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Answers a request carrying an import clause whose version can't be
+	 * parsed.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param generation
+	 *            the generation of the registry the response comes from
+	 * @param importClause
+	 *            the malformed clause
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void sendMalformedClause(HttpRequest request,
+			long generation, String importClause, ChannelOutputStream out)
+			throws IOException {
+		sendBody(request, generation, "400 Bad Request",
+				"Content-Type: text/plain; charset=UTF-8\r\n",
+				("Malformed import clause: " + importClause + "\r\n")
+						.getBytes("UTF-8"), out);
+	}
+
+	/**
+	 * Reads the import clauses sent in a request body, one per line.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param generation
+	 *            the generation of the registry the response comes from
+	 * @param out
+	 *            the client stream, where an error is sent if the body can't
+	 *            be read or one of its clauses is malformed
+	 * @return the import clauses, or null if an error was sent instead.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static List<String> readImportClauses(HttpRequest request,
+			long generation, ChannelOutputStream out) throws IOException {
+		if (request.getHeader("Transfer-Encoding") != null) {
+			sendBody(request, generation, "411 Length Required", "", new byte[0], out);
+			return null;
+		}
+		long length = Math.max(request.getContentLength(), 0);
+		if (length > MAX_RESOLVE_REQUEST_SIZE) {
+			sendBody(request, generation, "413 Request Entity Too Large", "", new byte[0],
+					out);
+			return null;
+		}
+		byte[] body = new byte[(int) length];
+		new DataInputStream(request.getBody()).readFully(body);
+		List<String> importClauses = new ArrayList<String>();
+		for (String line : new String(body, "UTF-8").split("\n")) {
+			line = line.trim();
+			if (line.length() == 0)
+				continue;
+			if (!JarBundleFile.PackageVersion.isValid(line)) {
+				sendMalformedClause(request, generation, line, out);
+				return null;
+			}
+			importClauses.add(line);
+		}
+		return importClauses;
+	}
+
+	/**
+	 * Describes the bundle providing a package as properties: the bundle file
+	 * name, the provided package version and the bundle size and SHA-1 hash.
+	 * 
+	 * @param bundle
+	 *            the bundle
+	 * @param importClause
+	 *            the import clause the bundle was found for, or null to leave
+	 *            the version out
+	 * @param prefix
+	 *            the prefix of every property key
+	 * @param sb
+	 *            where to append the properties
+	 */
+	private static void describe(JarBundleFile bundle, String importClause,
+			String prefix, StringBuilder sb) {
+		sb.append(prefix + "name=" + getFileName(bundle) + "\r\n");
+		if (importClause != null)
+			sb.append(prefix
+					+ "version="
+					+ bundle.getExportedPackages().get(
+							importClause.split(";")[0]) + "\r\n");
+		sb.append(prefix + "size=" + bundle.getSize() + "\r\n");
+		if (bundle.getContentHash() != null)
+			sb.append(prefix + "sha1=" + bundle.getContentHash() + "\r\n");
+	}
+
+	/**
+	 * Gets the file name of a bundle, relative to the repository folder.
+	 * 
+	 * @param bundle
+	 *            the bundle
+	 * @return the file name
+	 */
+	private static String getFileName(JarBundleFile bundle) {
+		int lengthToCut = (Main.getJarsFolderName() + File.separator).length();
+		return bundle.getName().substring(lengthToCut);
+	}
+
+	/**
+	 * Sends the contents.xml, straight from the copy rendered in memory for
+	 * the current registry generation. Clients accepting gzip get the
+	 * compressed copy.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getContentsXML(HttpRequest request, ChannelOutputStream out)
+			throws IOException {
+		XMLDataBase.Document document = XMLDataBase.getDocument();
+		if (document == null) {
+			sendBody(request, 0, "503 Service Unavailable",
+					"Retry-After: 1\r\n", new byte[0], out);
+			return;
+		}
+		long generation = document.getGeneration();
+		boolean gzipped = acceptsGzip(request);
+		String eTag = document.getETag(gzipped);
+		String fields = "Vary: Accept-Encoding\r\n"
+				+ validators(eTag, document.getLastModified());
+		if (isNotModified(request, eTag, document.getLastModified())) {
+			out.writeBytes(header(request, generation, "304 Not Modified",
+					fields, -1));
+			return;
+		}
+		sendBody(request, generation, "200 OK",
+				"Content-Type: text/xml; charset=UTF-8\r\n"
+						+ (gzipped ? "Content-Encoding: gzip\r\n" : "")
+						+ fields, document.getContent(gzipped), out);
+	}
+
+	/**
+	 * Sends the compact binary index of the registry (see
+	 * {@link CompactIndex}). With a <i>since</i> query parameter (a run id
+	 * and generation, as in {@link #changes}) only the delta from that
+	 * generation is sent, or the full index if that generation isn't
+	 * remembered anymore or belongs to another run; the index itself tells which one
+	 * it is.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @param snapshot
+	 *            the registry snapshot to send
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void getCompactIndex(HttpRequest request,
+			RegistrySnapshot snapshot, ChannelOutputStream out)
+			throws IOException {
+		long generation = snapshot.getGeneration();
+		CompactIndex.Encoded index;
+		try {
+			String value = getQueryParameter(request.getUrl(), "since");
+			if (value == null)
+				index = CompactIndex.getFullIndex(snapshot);
+			else {
+				long[] since = parseGenerationTag(value);
+				index = CompactIndex.getDelta(since[0], since[1], snapshot,
+						Main.getJarRegistry().getChangesSince(since[0],
+								since[1], snapshot));
+			}
+		} catch (NumberFormatException e) {
+			sendBody(request, generation, "400 Bad Request", "", new byte[0],
+					out);
+			return;
+		}
+		String fields = validators(index.getETag(), 0);
+		if (isNotModified(request, index.getETag(), 0)) {
+			out.writeBytes(header(request, generation, "304 Not Modified",
+					fields, -1));
+			return;
+		}
+		sendBody(request, generation, "200 OK",
+				"Content-Type: application/octet-stream\r\n" + fields,
+				index.getContent(), out);
+	}
+
+	/**
+	 * Checks if the client accepts gzip content, i.e. its Accept-Encoding
+	 * lists gzip (or *) without a zero quality value.
+	 * 
+	 * @param request
+	 *            the client request
+	 * @return true, if gzip can be sent
+	 */
+	private static boolean acceptsGzip(HttpRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null)
+			return false;
+		boolean wildcard = false;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.split(";");
+			String name = parameters[0].trim();
+			boolean accepted = true;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						accepted = Float.parseFloat(parameter.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+			if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip"))
+				return accepted;
+			if (name.equals("*"))
+				wildcard = accepted;
+		}
+		return wildcard;
+	}
+
+	/**
+	 * Builds the validator header fields of a response.
+	 * 
+	 * @param eTag
+	 *            the entity tag, or null if unknown
+	 * @param lastModified
+	 *            the modification time, or 0 if unknown
+	 * @return the ETag and Last-Modified fields, each one ending with CRLF
+	 */
+	private static String validators(String eTag, long lastModified) {
+		String fields = "";
+		if (eTag != null)
+			fields += "ETag: " + eTag + "\r\n";
+		if (lastModified > 0)
+			fields += "Last-Modified: " + HttpDate.format(lastModified)
+					+ "\r\n";
+		return fields;
+	}
+
+	/**
+	 * Checks the conditional request header fields (If-None-Match and
+	 * If-Modified-Since) against the current validators of a resource.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param eTag
+	 *            the resource entity tag, or null if unknown
+	 * @param lastModified
+	 *            the resource modification time, or 0 if unknown
+	 * @return true, if the client copy is still valid and a 304 Not Modified
+	 *         must be sent instead of the resource.
+	 */
+	private static boolean isNotModified(HttpRequest request, String eTag,
+			long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
 			/*
-			 * Package found?
+			 * If-None-Match takes precedence over If-Modified-Since.
 			 */
-			if (packagePath == null)
-				out.writeBytes(responseHeader);
-			else {
-				int lengthToCut = (Main.getJarsFolderName() + File.separator).length();
-				String fileName = packagePath.substring(lengthToCut);
+			if (eTag == null)
+				return false;
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*") || tag.equals(eTag)
+						|| tag.equals("W/" + eTag))
+					return true;
+			}
+			return false;
+		}
+		long since = HttpDate.parse(request.getHeader("If-Modified-Since"));
+		return since != -1 && lastModified > 0
+				&& lastModified / 1000 <= since / 1000;
+	}
+
+	/**
+	 * Builds a response header.
+	 * 
+	 * @param request
+	 *            the request being answered
+	 * @param generation
+	 *            the generation of the registry the response comes from
+	 * @param status
+	 *            the status code and reason, ex.: <i>200 OK</i>
+	 * @param fields
+	 *            extra header fields, each one ending with CRLF
+	 * @param contentLength
+	 *            the length of the response body, or -1 if the response has
+	 *            no body (ex. 304)
+	 * @return the header, including the empty line ending it
+	 */
+	private static String header(HttpRequest request, long generation,
+			String status, String fields, long contentLength) {
+		return "HTTP/1.1 " + status + "\r\nExpires:	-1\r\n"
+				+ "X-Registry-Generation: " + Main.getJarRegistry().getRunId()
+				+ ":" + generation + "\r\n" + fields
+				+ (contentLength < 0 ? "" : "Content-Length: " + contentLength
+						+ "\r\n") + "Connection:	"
+				+ (request.isKeepAlive() ? "keep-alive" : "close")
+				+ "\r\n\r\n";
+	}
+
+	/**
+	 * Sends a response with a small body to the client.
+	 * 
+	 * @param request
+	 *            the request being answered
+	 * @param generation
+	 *            the generation of the registry the response comes from
+	 * @param status
+	 *            the status code and reason, ex.: <i>200 OK</i>
+	 * @param fields
+	 *            extra header fields, each one ending with CRLF
+	 * @param body
+	 *            the body, not sent when answering a HEAD request
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void sendBody(HttpRequest request, long generation,
+			String status, String fields, byte[] body, ChannelOutputStream out)
+			throws IOException {
+		out.writeBytes(header(request, generation, status, fields, body.length));
+		if (!request.getMethod().equals("HEAD"))
+			out.write(body);
+	}
+
+	/**
+	 * Sends a file to the client. The file is handed to the socket with
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+	 * so its bytes never go through our heap.
+	 * <p>
+	 * A GET with a Range header only gets the byte ranges asked for (206
+	 * Partial Content, as multipart/byteranges if there are several), so an
+	 * interrupted download can be resumed. When an If-Range validator is
+	 * sent, the ranges are only honoured if the file didn't change.
+	 * 
+	 * @param fileName
+	 *            the file to send
+	 * @param cached
+	 *            the file content, if cached in memory, or null
+	 * @param request
+	 *            the request being answered
+	 * @param generation
+	 *            the generation of the registry the response comes from
+	 * @param contentType
+	 *            the media type of the file
+	 * @param fields
+	 *            extra header fields, each one ending with CRLF
+	 * @param eTag
+	 *            the file entity tag, or null if unknown
+	 * @param lastModified
+	 *            the file modification time, or 0 if unknown
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void sendFile(String fileName, ByteBuffer cached,
+			HttpRequest request, long generation, String contentType, String fields, String eTag,
+			long lastModified, ChannelOutputStream out) throws IOException {
+		FileChannel file = cached != null ? null : FileChannel.open(
+				Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			long length = cached != null ? cached.capacity() : file.size();
+			fields = "Accept-Ranges: bytes\r\n" + fields;
+			List<long[]> ranges = null;
+			if (request.getMethod().equals("GET")
+					&& isRangeValid(request, eTag, lastModified))
+				ranges = parseRanges(request.getHeader("Range"), length);
+			if (ranges == null) {
+				out.writeBytes(header(request, generation, "200 OK",
+						"Content-Type: " + contentType + "\r\n" + fields,
+						length));
+				if (!request.getMethod().equals("HEAD"))
+					send(file, cached, 0, length, out);
+			} else if (ranges.isEmpty()) {
+				sendBody(request, generation,
+						"416 Requested Range Not Satisfiable",
+						"Content-Range: bytes */" + length + "\r\n" + fields,
+						new byte[0], out);
+			} else if (ranges.size() == 1) {
+				long[] range = ranges.get(0);
+				out.writeBytes(header(request, generation,
+						"206 Partial Content", "Content-Type: " + contentType
+								+ "\r\n" + contentRange(range, length)
+								+ fields, range[1] - range[0] + 1));
+				send(file, cached, range[0], range[1] - range[0] + 1, out);
+			} else {
 				/*
-				 * Let us send the file to the client.
+				 * Every part header is known beforehand, so is the length.
 				 */
-				out.writeBytes("HTTP/1.1 200 OK\r\nExpires:	-1\r\nContent-Type: application/force-download\r\nContent-Disposition: attachment; filename=\""
-						+ fileName + "\"\r\nConnection:	close\r\n\r\n");
-				InputStream istream = new FileInputStream(packagePath);
-				final byte[] buffer = new byte[1024 * 8];
-				while (true) {
-					final int len = istream.read(buffer);
-					if (len <= 0) {
-						break;
-					}
-					out.write(buffer, 0, len);
+				String boundary = Long.toHexString(System.nanoTime())
+						+ Long.toHexString(length);
+				String[] partHeaders = new String[ranges.size()];
+				long contentLength = 0;
+				for (int i = 0; i < partHeaders.length; i++) {
+					long[] range = ranges.get(i);
+					partHeaders[i] = "\r\n--" + boundary + "\r\nContent-Type: "
+							+ contentType + "\r\n"
+							+ contentRange(range, length) + "\r\n";
+					contentLength += partHeaders[i].length() + range[1]
+							- range[0] + 1;
 				}
-				istream.close();
+				String end = "\r\n--" + boundary + "--\r\n";
+				contentLength += end.length();
+				out.writeBytes(header(request, generation,
+						"206 Partial Content",
+						"Content-Type: multipart/byteranges; boundary="
+								+ boundary + "\r\n" + fields, contentLength));
+				for (int i = 0; i < partHeaders.length; i++) {
+					long[] range = ranges.get(i);
+					out.writeBytes(partHeaders[i]);
+					send(file, cached, range[0], range[1] - range[0] + 1, out);
+				}
+				out.writeBytes(end);
 			}
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			//e.printStackTrace();
+		} finally {
+			if (file != null)
+				file.close();
 		}
 	}
 
-	private void getContentsXML(DataOutputStream out) {
-		try {
-			String fileName = XMLDataBase.FILE_NAME;
+	/**
+	 * Sends a region of a file, from the disk or from its cached copy.
+	 * 
+	 * @param file
+	 *            the file, or null if cached
+	 * @param cached
+	 *            the cached file content, or null
+	 * @param position
+	 *            the position of the first byte to send
+	 * @param count
+	 *            the number of bytes to send
+	 * @param out
+	 *            the client stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void send(FileChannel file, ByteBuffer cached,
+			long position, long count, ChannelOutputStream out)
+			throws IOException {
+		if (cached != null)
+			out.transferFrom(cached, (int) position, (int) count);
+		else
+			out.transferFrom(file, position, count);
+	}
+
+	/**
+	 * Builds the Content-Range header field of a byte range.
+	 * 
+	 * @param range
+	 *            the first and last byte positions, inclusive
+	 * @param length
+	 *            the file length
+	 * @return the header field, ending with CRLF
+	 */
+	private static String contentRange(long[] range, long length) {
+		return "Content-Range: bytes " + range[0] + "-" + range[1] + "/"
+				+ length + "\r\n";
+	}
+
+	/**
+	 * Checks the If-Range header field: the ranges asked for are only valid
+	 * if the file is still the one the client has a part of.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param eTag
+	 *            the file entity tag, or null if unknown
+	 * @param lastModified
+	 *            the file modification time, or 0 if unknown
+	 * @return true, if the Range header field can be honoured
+	 */
+	private static boolean isRangeValid(HttpRequest request, String eTag,
+			long lastModified) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
 			/*
-			 * Let us send the file to the client.
+			 * Only strong entity tags can validate a range.
 			 */
-			out.writeBytes("HTTP/1.1 200 OK\r\nExpires:	-1\r\nConnection:	close\r\n\r\n");
-			InputStream istream = new FileInputStream(fileName);
-			final byte[] buffer = new byte[1024 * 8];
-			while (true) {
-				final int len = istream.read(buffer);
-				if (len <= 0) {
-					break;
+			return eTag != null && ifRange.equals(eTag);
+		long date = HttpDate.parse(ifRange);
+		return date != -1 && lastModified > 0
+				&& lastModified / 1000 == date / 1000;
+	}
+
+	/**
+	 * Parses a Range header field.
+	 * 
+	 * @param header
+	 *            the header field value, ex.: <i>bytes=0-499,1000-</i>
+	 * @param length
+	 *            the file length
+	 * @return the satisfiable ranges, as their first and last byte positions
+	 *         (inclusive), empty if none is satisfiable, or null if the field
+	 *         is absent, invalid or asks too many ranges, in which case the
+	 *         whole file is sent.
+	 */
+	static List<long[]> parseRanges(String header, long length) {
+		if (header == null)
+			return null;
+		header = header.trim();
+		if (!header.startsWith("bytes="))
+			return null;
+		String[] specs = header.substring("bytes=".length()).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+		List<long[]> ranges = new ArrayList<long[]>();
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash < 0)
+					return null;
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+				long start;
+				long end;
+				if (first.length() == 0) {
+					/*
+					 * A suffix: the last N bytes.
+					 */
+					long suffix = Long.parseLong(last);
+					if (suffix < 0)
+						return null;
+					if (suffix == 0)
+						continue;
+					start = Math.max(length - suffix, 0);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(first);
+					end = last.length() == 0 ? length - 1 : Math.min(
+							Long.parseLong(last), length - 1);
+					if (start < 0 || (last.length() > 0 && Long
+							.parseLong(last) < start))
+						return null;
 				}
-				out.write(buffer, 0, len);
+				if (start < length && start <= end)
+					ranges.add(new long[] { start, end });
 			}
-			istream.close();
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			return null;
 		}
+		return ranges;
+	}
+
+	/**
+	 * Gets the port the server listens on.
+	 * 
+	 * @return the port, the one picked by the system if 0 was asked
+	 */
+	public int getPort() {
+		return listener.getPort();
 	}
 
 	/**
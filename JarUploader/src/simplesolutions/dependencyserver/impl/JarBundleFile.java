@@ -1,7 +1,11 @@
 package simplesolutions.dependencyserver.impl;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.osgi.framework.Version;
 
@@ -37,6 +41,16 @@ public final class JarBundleFile implements XMLParseable {
 			LOWER
 		}
 
+		/**
+		 * The canonical instances of the versions declared by registered
+		 * bundles, by version string. Most exports of a repository share a
+		 * handful of versions, so they also share the instances.
+		 */
+		private static final ConcurrentMap<String, PackageVersion> CANONICAL = new ConcurrentHashMap<String, PackageVersion>();
+
+		/** Packed key of the versions that don't fit in one. */
+		private static final long UNPACKED = -1;
+
 		/** The max version. */
 		private final Version maxVersion;
 
@@ -49,6 +63,21 @@ public final class JarBundleFile implements XMLParseable {
 		/** The min version comparison method. */
 		private final ComparisonMethod minVersionComparisonMethod;
 
+		/** The max version major, minor and micro packed in a long. */
+		private final long maxKey;
+
+		/** The max version qualifier, interned. */
+		private final String maxQualifier;
+
+		/** The min version major, minor and micro packed in a long. */
+		private final long minKey;
+
+		/** The min version qualifier, interned. */
+		private final String minQualifier;
+
+		/** If this is the concrete version 0.0.0, i.e. any version will do. */
+		private final boolean anyVersion;
+
 		/** The version string. */
 		private final String versionString;
 
@@ -60,8 +89,19 @@ public final class JarBundleFile implements XMLParseable {
 		 *            <code>javax.wsdl.xml;version="1.5"</code>.
 		 */
 		public PackageVersion(String packageDescriptor) {
-			String versionRange = getPackageVersion(packageDescriptor);
-			this.versionString = versionRange;
+			this(getPackageVersion(packageDescriptor), false);
+		}
+
+		/**
+		 * Instantiates a new package version.
+		 * 
+		 * @param versionRange
+		 *            the version or version range
+		 * @param intern
+		 *            if the version strings should be interned
+		 */
+		private PackageVersion(String versionRange, boolean intern) {
+			this.versionString = intern ? versionRange.intern() : versionRange;
 			if (versionRange.contains(",")) { // Is a version range?
 				if (versionRange.charAt(0) == '(')
 					minVersionComparisonMethod = ComparisonMethod.GREATER;
@@ -84,6 +124,101 @@ public final class JarBundleFile implements XMLParseable {
 				minVersion = maxVersion = new Version(versionRange);
 				minVersionComparisonMethod = maxVersionComparisonMethod = ComparisonMethod.EQUAL;
 			}
+			minKey = pack(minVersion);
+			maxKey = pack(maxVersion);
+			minQualifier = minVersion.getQualifier().intern();
+			maxQualifier = maxVersion.getQualifier().intern();
+			anyVersion = !isVersionRange() && minKey == 0
+					&& minQualifier.length() == 0;
+		}
+
+		/**
+		 * Gets the canonical instance of the version declared by a package
+		 * descriptor. Meant for the versions of registered bundles, requests
+		 * should use the constructor so clients can't fill the cache.
+		 * 
+		 * @param packageDescriptor
+		 *            the package descriptor as it is in a manifest file. Eg.:
+		 *            <code>javax.wsdl.xml;version="1.5"</code>.
+		 * @return the package version
+		 */
+		public static PackageVersion valueOf(String packageDescriptor) {
+			String versionRange = getPackageVersion(packageDescriptor);
+			PackageVersion version = CANONICAL.get(versionRange);
+			if (version == null) {
+				version = new PackageVersion(versionRange, true);
+				PackageVersion old = CANONICAL.putIfAbsent(
+						version.versionString, version);
+				if (old != null)
+					version = old;
+			}
+			return version;
+		}
+
+		/**
+		 * Checks if the version declared by a package descriptor can be
+		 * parsed, so a malformed request can be told apart from a package no
+		 * bundle provides.
+		 * 
+		 * @param packageDescriptor
+		 *            the package descriptor as it is in a manifest file. Eg.:
+		 *            <code>javax.wsdl.xml;version="1.5"</code>.
+		 * @return true, if the version (or version range) is well formed
+		 */
+		public static boolean isValid(String packageDescriptor) {
+			try {
+				new PackageVersion(packageDescriptor);
+				return true;
+			} catch (RuntimeException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Packs the major, minor and micro components of a version in a long
+		 * (16, 16 and 31 bits), so versions compare as a single number.
+		 * 
+		 * @param version
+		 *            the version
+		 * @return the packed key, or {@link #UNPACKED} if a component doesn't
+		 *         fit.
+		 */
+		private static long pack(Version version) {
+			if (version.getMajor() > 0xffff || version.getMinor() > 0xffff)
+				return UNPACKED;
+			return ((long) version.getMajor() << 47)
+					| ((long) version.getMinor() << 31) | version.getMicro();
+		}
+
+		/**
+		 * Compares a bound of two versions without allocating anything.
+		 * 
+		 * @param v1
+		 *            the first version
+		 * @param max1
+		 *            use the max bound of the first version (otherwise the
+		 *            min one)
+		 * @param v2
+		 *            the second version
+		 * @param max2
+		 *            use the max bound of the second version (otherwise the
+		 *            min one)
+		 * @return a negative, zero or positive number as the first bound is
+		 *         lower, equal or greater than the second one.
+		 */
+		static int compare(PackageVersion v1, boolean max1, PackageVersion v2,
+				boolean max2) {
+			long key1 = max1 ? v1.maxKey : v1.minKey;
+			long key2 = max2 ? v2.maxKey : v2.minKey;
+			if (key1 == UNPACKED || key2 == UNPACKED)
+				return (max1 ? v1.maxVersion : v1.minVersion)
+						.compareTo(max2 ? v2.maxVersion : v2.minVersion);
+			if (key1 != key2)
+				return key1 < key2 ? -1 : 1;
+			String qualifier1 = max1 ? v1.maxQualifier : v1.minQualifier;
+			String qualifier2 = max2 ? v2.maxQualifier : v2.minQualifier;
+			return qualifier1 == qualifier2 ? 0 : qualifier1
+					.compareTo(qualifier2);
 		}
 
 		/**
@@ -134,6 +269,16 @@ public final class JarBundleFile implements XMLParseable {
 			return minVersionComparisonMethod;
 		}
 
+		/**
+		 * Checks if this is the concrete version 0.0.0, which any version
+		 * satisfies.
+		 * 
+		 * @return true, if any version will do
+		 */
+		public boolean isAnyVersion() {
+			return anyVersion;
+		}
+
 		/**
 		 * Parses the package version.
 		 * 
@@ -142,14 +287,17 @@ public final class JarBundleFile implements XMLParseable {
 		 * @return the string with the version as it is in the manifest, or
 		 *         "0.0.0" if no version is declared.
 		 */
-		private String getPackageVersion(String packageNameEntry) {
-			String[] tmp1 = packageNameEntry.split("version=\"");
-			if (tmp1.length != 2)
+		private static String getPackageVersion(String packageNameEntry) {
+			final String attribute = "version=\"";
+			int start = packageNameEntry.indexOf(attribute);
+			if (start < 0
+					|| packageNameEntry.indexOf(attribute, start + 1) >= 0)
 				return "0.0.0"; // No version declared
-			String[] version = tmp1[1].split("\""); // split over the last
-													// quotation
-													// mark.
-			return version[0];
+			start += attribute.length();
+			int end = packageNameEntry.indexOf('"', start); // The closing
+															// quotation mark.
+			return end < 0 ? packageNameEntry.substring(start)
+					: packageNameEntry.substring(start, end);
 		}
 
 		/**
@@ -172,55 +320,47 @@ public final class JarBundleFile implements XMLParseable {
 			if (this.isVersionRange() && other.isVersionRange())
 				return false; // Cannot compare two ranges!
 			if (this.isVersionRange() || !other.isVersionRange()) {
-				boolean minTest = false;
-				boolean maxTest = false;
 				/*
 				 * If this version is 0.0.0 we don't care about versions, any
 				 * version will be compatible.
 				 */
-				if (!this.isVersionRange()
-						&& this.getConcreteVersion().compareTo(
-								new Version(0, 0, 0)) == 0)
+				if (anyVersion)
 					return true;
 				/*
 				 * Compare with lower bound.
 				 */
+				int c = compare(other, false, this, false);
+				boolean minTest;
 				switch (minVersionComparisonMethod) {
 				case EQUAL:
-					if (other.getConcreteVersion().compareTo(minVersion) == 0)
-						minTest = true;
+					minTest = c == 0;
 					break;
 				case EQUAL_OR_GREATER:
-					if (other.getConcreteVersion().compareTo(minVersion) >= 0)
-						minTest = true;
+					minTest = c >= 0;
 					break;
 				case GREATER:
-					if (other.getConcreteVersion().compareTo(minVersion) > 0)
-						minTest = true;
+					minTest = c > 0;
 					break;
 				default:
+					minTest = false;
 					break;
 				}
+				if (!minTest)
+					return false;
 				/*
 				 * Compare with upper bound.
 				 */
+				c = compare(other, false, this, true);
 				switch (maxVersionComparisonMethod) {
 				case EQUAL:
-					if (other.getConcreteVersion().compareTo(maxVersion) == 0)
-						maxTest = true;
-					break;
+					return c == 0;
 				case EQUAL_OR_LOWER:
-					if (other.getConcreteVersion().compareTo(maxVersion) <= 0)
-						maxTest = true;
-					break;
+					return c <= 0;
 				case LOWER:
-					if (other.getConcreteVersion().compareTo(maxVersion) < 0)
-						maxTest = true;
-					break;
+					return c < 0;
 				default:
-					break;
+					return false;
 				}
-				return minTest && maxTest;
 			} else {
 				return other.isCompatible(this);
 			}
@@ -233,9 +373,8 @@ public final class JarBundleFile implements XMLParseable {
 		 * @return true, if is version range
 		 */
 		public boolean isVersionRange() {
-			return !(this.minVersionComparisonMethod
-					.equals(ComparisonMethod.EQUAL) && this.maxVersionComparisonMethod
-					.equals(ComparisonMethod.EQUAL));
+			return this.minVersionComparisonMethod != ComparisonMethod.EQUAL
+					|| this.maxVersionComparisonMethod != ComparisonMethod.EQUAL;
 		}
 
 		/*
@@ -255,9 +394,27 @@ public final class JarBundleFile implements XMLParseable {
 	/** The imported packages. */
 	private final Map<String, PackageVersion> importedPackages;
 
+	/** The read only view of the exported packages. */
+	private final ImmutableMap<String, PackageVersion> exportedPackagesView;
+
+	/** The read only view of the imported packages. */
+	private final ImmutableMap<String, PackageVersion> importedPackagesView;
+
+	/** The imported packages declared with <i>resolution:=optional</i>. */
+	private final Set<String> optionalImports;
+
 	/** The name. */
 	private final String name;
 
+	/** The file size in bytes. */
+	private final long size;
+
+	/** The file modification time, in milliseconds since the epoch. */
+	private final long lastModified;
+
+	/** The hex SHA-1 hash of the file content, or null if unknown. */
+	private final String contentHash;
+
 	/**
 	 * Instantiates a new jar file.
 	 * 
@@ -270,17 +427,66 @@ public final class JarBundleFile implements XMLParseable {
 	 */
 	public JarBundleFile(String name, String[] importedPackages,
 			String[] exportedPackages) {
+		this(name, importedPackages, exportedPackages, 0, 0, null);
+	}
+
+	/**
+	 * Instantiates a new jar file.
+	 * 
+	 * @param name
+	 *            the name
+	 * @param importedPackages
+	 *            the imported packages
+	 * @param exportedPackages
+	 *            the exported packages
+	 * @param size
+	 *            the file size in bytes
+	 * @param lastModified
+	 *            the file modification time
+	 * @param contentHash
+	 *            the hex SHA-1 hash of the file content
+	 */
+	public JarBundleFile(String name, String[] importedPackages,
+			String[] exportedPackages, long size, long lastModified,
+			String contentHash) {
 		this.name = name;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.contentHash = contentHash;
 		this.exportedPackages = new HashMap<String, PackageVersion>();
 		this.importedPackages = new HashMap<String, PackageVersion>();
+		this.optionalImports = new HashSet<String>();
 		if (importedPackages != null)
-			for (String p : importedPackages)
-				this.importedPackages.put(p.split(";")[0],
-						new PackageVersion(p));
+			for (String p : importedPackages) {
+				String packageName = getPackageName(p);
+				this.importedPackages.put(packageName,
+						PackageVersion.valueOf(p));
+				if (ManifestHeaderParser.isOptionalImport(p))
+					this.optionalImports.add(packageName);
+			}
 		if (exportedPackages != null)
 			for (String p : exportedPackages)
-				this.exportedPackages.put(p.split(";")[0],
-						new PackageVersion(p));
+				this.exportedPackages.put(getPackageName(p),
+						PackageVersion.valueOf(p));
+		this.exportedPackagesView = new ImmutableMap<String, PackageVersion>(
+				this.exportedPackages);
+		this.importedPackagesView = new ImmutableMap<String, PackageVersion>(
+				this.importedPackages);
+	}
+
+	/**
+	 * Gets the package name of a package descriptor, interned as the same
+	 * names are imported and exported by many bundles.
+	 * 
+	 * @param packageDescriptor
+	 *            the package descriptor as it is in a manifest file. Eg.:
+	 *            <code>javax.wsdl.xml;version="1.5"</code>.
+	 * @return the package name
+	 */
+	private static String getPackageName(String packageDescriptor) {
+		int end = packageDescriptor.indexOf(';');
+		return (end < 0 ? packageDescriptor : packageDescriptor.substring(0,
+				end)).intern();
 	}
 
 	@Override
@@ -295,7 +501,7 @@ public final class JarBundleFile implements XMLParseable {
 	 * @return the exported packages
 	 */
 	public ImmutableMap<String, PackageVersion> getExportedPackages() {
-		return new ImmutableMap<String, PackageVersion>(exportedPackages);
+		return exportedPackagesView;
 	}
 
 	/**
@@ -304,7 +510,19 @@ public final class JarBundleFile implements XMLParseable {
 	 * @return the imported packages
 	 */
 	public ImmutableMap<String, PackageVersion> getImportedPackages() {
-		return new ImmutableMap<String, PackageVersion>(importedPackages);
+		return importedPackagesView;
+	}
+
+	/**
+	 * Checks if an imported package was declared with
+	 * <i>resolution:=optional</i>, i.e. the bundle works without it.
+	 * 
+	 * @param packageName
+	 *            the imported package name
+	 * @return true, if the import is optional
+	 */
+	public boolean isOptionalImport(String packageName) {
+		return optionalImports.contains(packageName);
 	}
 
 	/**
@@ -317,14 +535,23 @@ public final class JarBundleFile implements XMLParseable {
 	 * @return true, if successful
 	 */
 	public boolean providesPackage(String packageNameManifest) {
-		String packageName = packageNameManifest.split(";")[0];
-		PackageVersion version = new PackageVersion(packageNameManifest);
-		for (Map.Entry<String, PackageVersion> e : this.getExportedPackages()
-				.entrySet())
-			if (e.getKey().equals(packageName)
-					&& version.isCompatible(e.getValue()))
-				return true;
-		return false;
+		return providesPackage(packageNameManifest.split(";")[0],
+				new PackageVersion(packageNameManifest));
+	}
+
+	/**
+	 * Seeks for a given package with a given version inside this jar file
+	 * (bundle).
+	 * 
+	 * @param packageName
+	 *            the package name
+	 * @param version
+	 *            the requested version (or version range)
+	 * @return true, if successful
+	 */
+	public boolean providesPackage(String packageName, PackageVersion version) {
+		PackageVersion exported = exportedPackages.get(packageName);
+		return exported != null && version.isCompatible(exported);
 	}
 
 	/**
@@ -336,6 +563,43 @@ public final class JarBundleFile implements XMLParseable {
 		return name;
 	}
 
+	/**
+	 * Gets the file size.
+	 * 
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the file modification time.
+	 * 
+	 * @return the modification time, in milliseconds since the epoch
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Gets the hash of the file content.
+	 * 
+	 * @return the hex SHA-1 hash, or null if unknown
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * Gets the strong HTTP entity tag of this bundle, derived from its content
+	 * hash.
+	 * 
+	 * @return the quoted entity tag, or null if the content hash is unknown
+	 */
+	public String getETag() {
+		return contentHash == null ? null : "\"" + contentHash + "\"";
+	}
+
 	@Override
 	public String toXML() {
 		StringBuilder sb = new StringBuilder();
@@ -1,12 +1,22 @@
 package simplesolutions.dependencyserver.impl;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Enumeration;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 /**
@@ -16,6 +26,42 @@ import java.util.zip.ZipFile;
  */
 public final class JarLoader {
 
+	/** The manifest entry name. */
+	private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+	/** The manifest entry name, as written by some Windows tools. */
+	private static final String MANIFEST_NAME_WINDOWS = "META-INF\\MANIFEST.MF";
+
+	/** Signature of the end of central directory record. */
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+	/** Signature of each central directory file header. */
+	private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+
+	/** Signature of each local file header. */
+	private static final int LOCAL_FILE_HEADER = 0x04034b50;
+
+	/** Size of the end of central directory record, without the comment. */
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+	/** Size of a central directory file header, without the variable fields. */
+	private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+	/** Size of a local file header, without the variable fields. */
+	private static final int LOCAL_FILE_HEADER_SIZE = 30;
+
+	/** Maximum zip comment size, bounds the search for the end record. */
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+
+	/** How much of the central directory is read at a time. */
+	private static final int CENTRAL_DIRECTORY_CHUNK = 64 * 1024;
+
+	/** Manifests bigger than this are refused. */
+	private static final int MAX_MANIFEST_SIZE = 16 * 1024 * 1024;
+
+	/** Returned when the archive is known to have no manifest. */
+	private static final byte[] NO_MANIFEST = new byte[0];
+
 	/**
 	 * Gets the exported packages.
 	 * 
@@ -24,7 +70,8 @@ public final class JarLoader {
 	 * @return the exported packages
 	 */
 	public static String[] getExportedPackages(String fileName) {
-		return parseField(fileName, "Export-Package");
+		BundleManifest manifest = readManifest(fileName);
+		return manifest == null ? null : manifest.getExportedPackages();
 	}
 
 	/**
@@ -35,123 +82,337 @@ public final class JarLoader {
 	 * @return the imported packages
 	 */
 	public static String[] getImportedPackages(String fileName) {
-		return parseField(fileName, "Import-Package");
+		BundleManifest manifest = readManifest(fileName);
+		return manifest == null ? null : manifest.getImportedPackages();
+	}
+
+	public static boolean isValidJarFileWithManifest(String fileName) {
+		return readManifest(fileName) != null;
 	}
 
 	/**
-	 * Gets the manifest.
+	 * Reads the manifest of a jar, opening the file only once.
+	 * <p>
+	 * Instead of walking every entry of the archive, the central directory is
+	 * located from the end of the file and scanned for the manifest entry,
+	 * whose data is then read straight from its offset. Archives this doesn't
+	 * understand (zip64, multi disk) fall back to {@link ZipFile}.
 	 * 
 	 * @param fileName
-	 *            the file name
-	 * @return the manifest
+	 *            the jar file path.
+	 * @return the manifest, or null if the file isn't a jar with a manifest.
 	 */
-	private static String getManifest(String fileName) {
-		ZipFile zip = null;
+	public static BundleManifest readManifest(String fileName) {
+		FileChannel channel = null;
 		try {
-			zip = new ZipFile(fileName);
-			for (Enumeration<? extends ZipEntry> e = zip.entries(); e
-					.hasMoreElements();) {
-				ZipEntry entry = (ZipEntry) e.nextElement();
-				if (entry.toString().equals("META-INF/MANIFEST.MF")
-						|| entry.toString().equals("META-INF\\MANIFEST.MF")) {
-					BufferedReader bf = new BufferedReader(
-							new InputStreamReader(zip.getInputStream(entry)));
-					StringBuilder out = new StringBuilder();
-					String line;
-					while ((line = bf.readLine()) != null) {
-						out.append(line + "\n");
-					}
-					bf.close();
-					zip.close();
-					return out.toString();
-				}
-			}
+			channel = FileChannel.open(Paths.get(fileName),
+					StandardOpenOption.READ);
+			byte[] content = readManifestEntry(channel);
+			if (content == null)
+				content = readManifestEntry(fileName);
+			if (content == null || content == NO_MANIFEST)
+				return null;
+			return BundleManifest.parse(content);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
+		} finally {
+			if (channel != null)
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 		}
-		return null;
-	}
-
-	public static boolean isValidJarFileWithManifest(String fileName) {
-		return getManifest(fileName) != null;
 	}
 
 	/**
-	 * Parses a given field from the jar's manifest.mf file.
+	 * Reads the manifest entry using the zip central directory.
+	 * <p>
+	 * The file is read with positional reads rather than memory mapped: a
+	 * mapped file stays locked on Windows until the buffer is garbage
+	 * collected, which would keep the repository folder from deleting it.
 	 * 
-	 * @param fileName
-	 *            the jar file path.
-	 * @param fieldName
-	 *            the desired manifest field name.
-	 * @return an array with the entries in that field.
+	 * @param channel
+	 *            the jar file
+	 * @return the manifest bytes, {@link #NO_MANIFEST} if the file isn't a jar
+	 *         with a manifest, or null if the archive must be read some other
+	 *         way.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
 	 */
-	private static String[] parseField(String fileName, String fieldName) {
-		String manifest = getManifest(fileName);
-		if (manifest == null)
-			return null;
+	private static byte[] readManifestEntry(FileChannel channel)
+			throws IOException {
+		long fileSize = channel.size();
+		if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE)
+			return NO_MANIFEST;
 
 		/*
-		 * Divide the file in two parts, the first one is trash the second one
-		 * contains the desired entries and some trash appended.
+		 * The end of central directory record is at the end of the file,
+		 * followed only by the (optional) archive comment.
 		 */
-		String[] tmp1 = manifest.split(fieldName + ":");
-		if (tmp1.length != 2)
-			return null; // No entries for that field.
-		String[] tmp2 = tmp1[1].split("\n");
-
-		/*
-		 * Seek for the end of current manifest parameter i.e. the first line
-		 * not beginning by a space character. (We assume the line where
-		 * fieldName is a valid line containing at least one entry). The first
-		 * line not beginning with a space character and the followers are
-		 * trash.
-		 */
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < tmp2.length; i++) {
-			if (tmp2[i] == null || tmp2[i].length() == 0
-					|| tmp2[i].charAt(0) != ' ')
+		int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE
+				+ MAX_COMMENT_SIZE);
+		ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+		int end = -1;
+		for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+				end = i;
 				break;
-			sb.append(tmp2[i]);
+			}
 		}
+		if (end < 0)
+			return NO_MANIFEST; // Not a zip file.
+		int entries = tail.getShort(end + 10) & 0xffff;
+		long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+		long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+		if (entries == 0xffff || directoryOffset == 0xffffffffL
+				|| directoryOffset + directorySize > fileSize)
+			return null; // Zip64, let ZipFile deal with it.
 
 		/*
-		 * Take out extras spaces that may exist.
+		 * Scan the central directory a chunk at a time, stopping at the
+		 * manifest (usually one of the first entries).
 		 */
-		String entireFieldValue = sb.toString().replaceAll(" ", "");
-
-		/*
-		 * Separate each entry and take out the extra spaces.
-		 */
-		List<String> entries = new LinkedList<String>();
-		String packageName = "";
-		boolean insideQuote = false;
-		for (int i = 0; i < entireFieldValue.length(); i++) {
-			char c = entireFieldValue.charAt(i);
-			if (c == '"') {
-				/*
-				 * Parameter detected.
-				 */
-				insideQuote = !insideQuote;
-				packageName += c;
-			} else if (c == ',' && !insideQuote) {
-				/*
-				 * New package detected.
-				 */
-				entries.add(new String(packageName));
-				packageName = "";
-			} else {
-				packageName += c;
+		long position = directoryOffset;
+		long directoryEnd = directoryOffset + directorySize;
+		ByteBuffer chunk = null;
+		int offset = 0;
+		for (int i = 0; i < entries; i++) {
+			if (chunk == null
+					|| offset + CENTRAL_DIRECTORY_HEADER_SIZE > chunk.limit()
+					|| offset + headerSize(chunk, offset) > chunk.limit()) {
+				position += offset;
+				int size = (int) Math.min(CENTRAL_DIRECTORY_CHUNK, directoryEnd
+						- position);
+				if (size < CENTRAL_DIRECTORY_HEADER_SIZE)
+					return null;
+				chunk = read(channel, position, size);
+				offset = 0;
+				if (headerSize(chunk, offset) > size)
+					return null; // Absurd header, not worth it.
 			}
+			if (chunk.getInt(offset) != CENTRAL_DIRECTORY_HEADER)
+				return null;
+			int nameLength = chunk.getShort(offset + 28) & 0xffff;
+			if (isManifestName(chunk, offset + CENTRAL_DIRECTORY_HEADER_SIZE,
+					nameLength)) {
+				int method = chunk.getShort(offset + 10) & 0xffff;
+				long compressedSize = chunk.getInt(offset + 20) & 0xffffffffL;
+				long size = chunk.getInt(offset + 24) & 0xffffffffL;
+				long localHeader = chunk.getInt(offset + 42) & 0xffffffffL;
+				return readEntryData(channel, method, compressedSize, size,
+						localHeader);
+			}
+			offset += headerSize(chunk, offset);
 		}
-		/*
-		 * Add last accumulated entry.
-		 */
-		if (packageName != "")
-			entries.add(new String(packageName));
-		if (entries.size() == 0)
+		return NO_MANIFEST;
+	}
+
+	/**
+	 * Gets the full size of a central directory file header.
+	 * 
+	 * @param chunk
+	 *            the buffer holding it
+	 * @param offset
+	 *            where it starts
+	 * @return the size, including name, extra field and comment.
+	 */
+	private static int headerSize(ByteBuffer chunk, int offset) {
+		return CENTRAL_DIRECTORY_HEADER_SIZE
+				+ (chunk.getShort(offset + 28) & 0xffff)
+				+ (chunk.getShort(offset + 30) & 0xffff)
+				+ (chunk.getShort(offset + 32) & 0xffff);
+	}
+
+	/**
+	 * Checks if an entry name is the manifest, without decoding it.
+	 * 
+	 * @param chunk
+	 *            the buffer holding the name
+	 * @param offset
+	 *            where the name starts
+	 * @param length
+	 *            the name length
+	 * @return true, if it's the manifest
+	 */
+	private static boolean isManifestName(ByteBuffer chunk, int offset,
+			int length) {
+		if (length != MANIFEST_NAME.length())
+			return false;
+		for (int i = 0; i < length; i++) {
+			char c = (char) chunk.get(offset + i);
+			if (c != MANIFEST_NAME.charAt(i)
+					&& c != MANIFEST_NAME_WINDOWS.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the data of an entry, inflating it if needed.
+	 * 
+	 * @param channel
+	 *            the jar file
+	 * @param method
+	 *            the compression method
+	 * @param compressedSize
+	 *            the compressed size
+	 * @param size
+	 *            the uncompressed size
+	 * @param localHeader
+	 *            the offset of the entry local header
+	 * @return the entry data, or null if it can't be read this way.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] readEntryData(FileChannel channel, int method,
+			long compressedSize, long size, long localHeader)
+			throws IOException {
+		if (compressedSize > MAX_MANIFEST_SIZE || size > MAX_MANIFEST_SIZE
+				|| localHeader + LOCAL_FILE_HEADER_SIZE > channel.size())
+			return null;
+		ByteBuffer header = read(channel, localHeader, LOCAL_FILE_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_FILE_HEADER)
+			return null;
+		long dataStart = localHeader + LOCAL_FILE_HEADER_SIZE
+				+ (header.getShort(26) & 0xffff)
+				+ (header.getShort(28) & 0xffff);
+		if (dataStart + compressedSize > channel.size())
+			return null;
+		ByteBuffer data = read(channel, dataStart, (int) compressedSize);
+		if (method == ZipEntry.STORED)
+			return data.array();
+		if (method != ZipEntry.DEFLATED)
 			return null;
-		else
-			return entries.toArray(new String[entries.size()]);
+		Inflater inflater = new Inflater(true);
+		try {
+			/*
+			 * Raw deflate streams may need an extra dummy byte at the end.
+			 */
+			byte[] input = Arrays.copyOf(data.array(), data.capacity() + 1);
+			inflater.setInput(input);
+			byte[] out = new byte[(int) size];
+			int n = 0;
+			while (n < out.length && !inflater.finished()) {
+				int r = inflater.inflate(out, n, out.length - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					return null;
+				n += r;
+			}
+			return n == out.length ? out : null;
+		} catch (DataFormatException e) {
+			return null;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Reads the manifest entry through {@link ZipFile}, for the archives
+	 * {@link #readManifestEntry(FileChannel)} doesn't handle.
+	 * 
+	 * @param fileName
+	 *            the jar file path.
+	 * @return the manifest bytes, or null if there's no manifest.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static byte[] readManifestEntry(String fileName) throws IOException {
+		ZipFile zip;
+		try {
+			zip = new ZipFile(fileName);
+		} catch (ZipException e) {
+			return null; // Not a zip file at all.
+		}
+		try {
+			ZipEntry entry = zip.getEntry(MANIFEST_NAME);
+			if (entry == null)
+				entry = zip.getEntry(MANIFEST_NAME_WINDOWS);
+			if (entry == null)
+				return null;
+			InputStream in = zip.getInputStream(entry);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024 * 8];
+			int len;
+			while ((len = in.read(buffer)) > 0) {
+				out.write(buffer, 0, len);
+				if (out.size() > MAX_MANIFEST_SIZE)
+					return null;
+			}
+			return out.toByteArray();
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Reads a region of a file.
+	 * 
+	 * @param channel
+	 *            the file
+	 * @param position
+	 *            where the region starts
+	 * @param size
+	 *            the region size
+	 * @return a little endian buffer with the region.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int size)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * Computes the hash of a file content.
+	 * 
+	 * @param fileName
+	 *            the file name
+	 * @return the hex SHA-1 hash of the file, or null if it can't be read.
+	 */
+	public static String getContentHash(String fileName) {
+		try {
+			InputStream in = new FileInputStream(fileName);
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-1");
+				final byte[] buffer = new byte[1024 * 8];
+				int len;
+				while ((len = in.read(buffer)) > 0)
+					digest.update(buffer, 0, len);
+				return toHex(digest.digest());
+			} finally {
+				in.close();
+			}
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Converts a digest to its hexadecimal representation.
+	 * 
+	 * @param digest
+	 *            the digest
+	 * @return the hex string, two lower case characters per byte.
+	 */
+	public static String toHex(byte[] digest) {
+		final char[] hexDigits = "0123456789abcdef".toCharArray();
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = hexDigits[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = hexDigits[digest[i] & 0xf];
+		}
+		return new String(hex);
 	}
 
 }
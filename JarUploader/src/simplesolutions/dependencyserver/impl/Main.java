@@ -10,6 +10,28 @@ public final class Main {
 	/** The Constant JARS_PATH. */
 	private static final String JARS_PATH = "jars";
 
+	/**
+	 * How long an idle persistent HTTP connection is kept open, in
+	 * milliseconds.
+	 */
+	private static final long KEEP_ALIVE_TIMEOUT = Long.getLong(
+			"jarrepository.keepAliveTimeout", 15000);
+
+	/** The maximum number of requests served per HTTP connection. */
+	private static final int MAX_KEEP_ALIVE_REQUESTS = Integer.getInteger(
+			"jarrepository.maxKeepAliveRequests", 500);
+
+	/**
+	 * How long a request for changes waits for something to change, in
+	 * milliseconds.
+	 */
+	private static final long CHANGES_TIMEOUT = Long.getLong(
+			"jarrepository.changesTimeout", 30000);
+
+	/** The memory used to cache the most downloaded bundles, in bytes. */
+	private static final long BUNDLE_CACHE_SIZE = Long.getLong(
+			"jarrepository.bundleCacheSize", 64 * 1024 * 1024);
+
 	/** The jar registry. */
 	private static BundleDatabase jarRegistry;
 
@@ -26,7 +48,10 @@ public final class Main {
 		System.out.println("HINT: Put your bundles in "
 				+ file.getAbsolutePath() + " inside the " + JARS_PATH
 				+ File.separator + " folder.");
-		new HttpServer(80).start();
+		HttpServer server = new HttpServer(80, KEEP_ALIVE_TIMEOUT,
+				MAX_KEEP_ALIVE_REQUESTS, CHANGES_TIMEOUT, BUNDLE_CACHE_SIZE);
+		jarRegistry.addChangeListener(server);
+		server.start();
 	}
 
 	/**
@@ -38,6 +63,16 @@ public final class Main {
 		return jarRegistry;
 	}
 
+	/**
+	 * Sets the jar registry, for the tests, which don't run main.
+	 * 
+	 * @param registry
+	 *            the jar registry
+	 */
+	static void setJarRegistry(BundleDatabase registry) {
+		jarRegistry = registry;
+	}
+
 	public static String getJarsFolderName() {
 		return JARS_PATH;
 	}
@@ -0,0 +1,329 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simplesolutions.dependencyserver.impl.JarBundleFile.PackageVersion;
+import simplesolutions.dependencyserver.impl.JarBundleFile.PackageVersion.ComparisonMethod;
+
+/**
+ * The Class PackageIndex.
+ * <p>
+ * Inverted index mapping each exported package name to the bundles that
+ * export it. Providers exporting a concrete version are kept sorted by that
+ * version, so a lookup costs one hash hit plus a binary search that picks the
+ * highest compatible version.
+ * <p>
+ * Once published in a {@link RegistrySnapshot} an index is no longer
+ * modified, the next snapshot works on a copy.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class PackageIndex {
+
+	/**
+	 * A bundle exporting a package with a given version.
+	 */
+	private final static class Provider {
+
+		/** The bundle exporting the package. */
+		private final JarBundleFile bundle;
+
+		/** The exported version. */
+		private final PackageVersion version;
+
+		/**
+		 * Instantiates a new provider.
+		 *
+		 * @param bundle
+		 *            the bundle
+		 * @param version
+		 *            the exported version
+		 */
+		private Provider(JarBundleFile bundle, PackageVersion version) {
+			this.bundle = bundle;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * The providers of a single package. Instances are never modified after
+	 * being published in the index, updates replace them (copy-on-write).
+	 */
+	private final static class Providers {
+
+		/** The providers exporting a concrete version, sorted by version. */
+		private final Provider[] concrete;
+
+		/**
+		 * The providers exporting a version range (unusual, but allowed by the
+		 * manifests we read). These can't be sorted and are checked one by
+		 * one.
+		 */
+		private final Provider[] ranged;
+
+		/**
+		 * Instantiates a new providers entry.
+		 *
+		 * @param concrete
+		 *            the concrete providers, already sorted
+		 * @param ranged
+		 *            the ranged providers
+		 */
+		private Providers(Provider[] concrete, Provider[] ranged) {
+			this.concrete = concrete;
+			this.ranged = ranged;
+		}
+
+		/**
+		 * Checks if there are no providers left.
+		 *
+		 * @return true, if empty
+		 */
+		private boolean isEmpty() {
+			return concrete.length == 0 && ranged.length == 0;
+		}
+	}
+
+	/** Orders providers by exported version, then by bundle name. */
+	private static final Comparator<Provider> VERSION_ORDER = new Comparator<Provider>() {
+		@Override
+		public int compare(Provider p1, Provider p2) {
+			int c = PackageVersion.compare(p1.version, false, p2.version, false);
+			if (c != 0)
+				return c;
+			return p1.bundle.getName().compareTo(p2.bundle.getName());
+		}
+	};
+
+	/** An empty providers array. */
+	private static final Provider[] NO_PROVIDERS = new Provider[0];
+
+	/** The index itself, from package name to its providers. */
+	private final Map<String, Providers> index = new ConcurrentHashMap<String, Providers>();
+
+	/**
+	 * Instantiates an empty package index.
+	 */
+	public PackageIndex() {
+	}
+
+	/**
+	 * Instantiates a copy of a package index. The providers of each package
+	 * are shared, as they are never modified, so this only costs a map copy.
+	 * 
+	 * @param other
+	 *            the index to copy
+	 */
+	public PackageIndex(PackageIndex other) {
+		index.putAll(other.index);
+	}
+
+	/**
+	 * Adds every package exported by a bundle to the index.
+	 *
+	 * @param bundle
+	 *            the bundle
+	 */
+	public synchronized void add(JarBundleFile bundle) {
+		for (Map.Entry<String, PackageVersion> e : bundle
+				.getExportedPackages().entrySet()) {
+			Providers old = index.get(e.getKey());
+			Provider p = new Provider(bundle, e.getValue());
+			Provider[] concrete = old == null ? NO_PROVIDERS : old.concrete;
+			Provider[] ranged = old == null ? NO_PROVIDERS : old.ranged;
+			if (p.version.isVersionRange()) {
+				ranged = Arrays.copyOf(ranged, ranged.length + 1);
+				ranged[ranged.length - 1] = p;
+			} else {
+				/*
+				 * Insert it keeping the array sorted.
+				 */
+				int pos = Arrays.binarySearch(concrete, p, VERSION_ORDER);
+				if (pos < 0)
+					pos = -pos - 1;
+				Provider[] tmp = new Provider[concrete.length + 1];
+				System.arraycopy(concrete, 0, tmp, 0, pos);
+				tmp[pos] = p;
+				System.arraycopy(concrete, pos, tmp, pos + 1, concrete.length
+						- pos);
+				concrete = tmp;
+			}
+			index.put(e.getKey(), new Providers(concrete, ranged));
+		}
+	}
+
+	/**
+	 * Removes every package exported by a bundle from the index.
+	 *
+	 * @param bundle
+	 *            the bundle
+	 */
+	public synchronized void remove(JarBundleFile bundle) {
+		for (String packageName : bundle.getExportedPackages().keySet()) {
+			Providers old = index.get(packageName);
+			if (old == null)
+				continue;
+			Providers updated = new Providers(without(old.concrete, bundle),
+					without(old.ranged, bundle));
+			if (updated.isEmpty())
+				index.remove(packageName);
+			else
+				index.put(packageName, updated);
+		}
+	}
+
+	/**
+	 * Copies a providers array leaving out the entries of a given bundle.
+	 *
+	 * @param providers
+	 *            the providers
+	 * @param bundle
+	 *            the bundle to leave out
+	 * @return the new array
+	 */
+	private static Provider[] without(Provider[] providers, JarBundleFile bundle) {
+		List<Provider> kept = new ArrayList<Provider>(providers.length);
+		for (Provider p : providers)
+			if (!p.bundle.getName().equals(bundle.getName()))
+				kept.add(p);
+		return kept.toArray(new Provider[kept.size()]);
+	}
+
+	/**
+	 * Seeks for the bundle providing the highest compatible version of a given
+	 * package.
+	 *
+	 * @param packageNameManifest
+	 *            the package name in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundle or null if no bundle provides a compatible package.
+	 */
+	public JarBundleFile getProvider(String packageNameManifest) {
+		int semicolon = packageNameManifest.indexOf(';');
+		String packageName = semicolon < 0 ? packageNameManifest
+				: packageNameManifest.substring(0, semicolon);
+		/*
+		 * Packages nobody exports (javax.*, org.w3c.*, ...) are most of the
+		 * misses, they're answered before parsing any version.
+		 */
+		Providers providers = index.get(packageName);
+		if (providers == null)
+			return null;
+		return getProvider(providers, new PackageVersion(packageNameManifest));
+	}
+
+	/**
+	 * Seeks for the bundle providing the highest compatible version of a given
+	 * package.
+	 *
+	 * @param packageName
+	 *            the package name
+	 * @param request
+	 *            the requested version (or version range)
+	 * @return the bundle or null if no bundle provides a compatible package.
+	 */
+	public JarBundleFile getProvider(String packageName, PackageVersion request) {
+		Providers providers = index.get(packageName);
+		if (providers == null)
+			return null;
+		return getProvider(providers, request);
+	}
+
+	/**
+	 * Seeks for the bundle providing the highest version of a package imported
+	 * by a bundle. Unlike the clauses asked by the clients, which are matched
+	 * exactly, a bare version in a manifest is a floor as OSGi has it: an
+	 * import of <i>1.0</i> is satisfied by an export of <i>1.2</i>.
+	 *
+	 * @param packageName
+	 *            the package name
+	 * @param imported
+	 *            the imported version (or version range)
+	 * @return the bundle or null if no bundle provides a compatible package.
+	 */
+	public JarBundleFile getProviderForImport(String packageName,
+			PackageVersion imported) {
+		Providers providers = index.get(packageName);
+		if (providers == null)
+			return null;
+		if (imported.isAnyVersion() || imported.isVersionRange())
+			return getProvider(providers, imported);
+		Provider[] concrete = providers.concrete;
+		if (concrete.length > 0
+				&& PackageVersion.compare(concrete[concrete.length - 1].version,
+						false, imported, false) >= 0)
+			return concrete[concrete.length - 1].bundle;
+		for (Provider p : providers.ranged)
+			if (PackageVersion.compare(p.version, true, imported, false) >= 0)
+				return p.bundle;
+		return null;
+	}
+
+	/**
+	 * Seeks for the provider of the highest compatible version of a package.
+	 *
+	 * @param providers
+	 *            the providers of the package
+	 * @param request
+	 *            the requested version (or version range)
+	 * @return the bundle or null if no provider is compatible.
+	 */
+	private static JarBundleFile getProvider(Providers providers,
+			PackageVersion request) {
+		Provider[] concrete = providers.concrete;
+		if (concrete.length > 0) {
+			int candidate;
+			if (request.isAnyVersion())
+				candidate = concrete.length - 1; // Any version will do.
+			else
+				candidate = upperBound(
+						concrete,
+						request,
+						request.getMaxVersionComparisonMethod() != ComparisonMethod.LOWER) - 1;
+			/*
+			 * The candidate is the highest version not above the upper bound,
+			 * if it fails the lower bound so will every lower version.
+			 */
+			if (candidate >= 0
+					&& request.isCompatible(concrete[candidate].version))
+				return concrete[candidate].bundle;
+		}
+		for (Provider p : providers.ranged)
+			if (request.isCompatible(p.version))
+				return p.bundle;
+		return null;
+	}
+
+	/**
+	 * Binary searches for the first provider above a given version.
+	 *
+	 * @param providers
+	 *            the providers, sorted by version
+	 * @param request
+	 *            the requested version, whose max version is the bound
+	 * @param inclusive
+	 *            if providers with exactly this version are below the bound
+	 * @return the index of the first provider above the bound, or the array
+	 *         length if there is none.
+	 */
+	private static int upperBound(Provider[] providers,
+			PackageVersion request, boolean inclusive) {
+		int low = 0;
+		int high = providers.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int c = PackageVersion.compare(providers[mid].version, false,
+					request, true);
+			if (c < 0 || (inclusive && c == 0))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+}
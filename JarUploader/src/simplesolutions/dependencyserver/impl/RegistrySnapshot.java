@@ -0,0 +1,167 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Class RegistrySnapshot.
+ * <p>
+ * An immutable view of the registry: the registered bundles, the package
+ * index built from them and the resolver working on that index. Every batch
+ * of changes produces a new snapshot with the next generation number, which
+ * is then published all at once, so readers never see a half applied batch
+ * and need no locks: whoever holds a snapshot sees the same registry until
+ * it lets it go.
+ * <p>
+ * Generations restart at 0 with every run of the server, so each run also
+ * picks a random run id, shared by all its snapshots, that tells one run's
+ * generation N from another's.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class RegistrySnapshot {
+
+	/** The id of the run of the server the snapshot belongs to. */
+	private final long runId;
+
+	/** The generation, incremented by each batch of changes. */
+	private final long generation;
+
+	/** The registered bundles, by file name. */
+	private final Map<String, JarBundleFile> bundles;
+
+	/** The index from exported package names to the bundles exporting them. */
+	private final PackageIndex packageIndex;
+
+	/** The resolver of transitive dependencies. */
+	private final TransitiveResolver transitiveResolver;
+
+	/**
+	 * Instantiates an empty registry snapshot, generation 0 of a new run.
+	 */
+	public RegistrySnapshot() {
+		this(new SecureRandom().nextLong() & Long.MAX_VALUE, 0,
+				new HashMap<String, JarBundleFile>(), new PackageIndex());
+	}
+
+	/**
+	 * Instantiates a new registry snapshot.
+	 *
+	 * @param runId
+	 *            the run id, not negative
+	 * @param generation
+	 *            the generation
+	 * @param bundles
+	 *            the bundles, not to be modified anymore
+	 * @param packageIndex
+	 *            the package index, not to be modified anymore
+	 */
+	private RegistrySnapshot(long runId, long generation,
+			Map<String, JarBundleFile> bundles, PackageIndex packageIndex) {
+		this.runId = runId;
+		this.generation = generation;
+		this.bundles = Collections.unmodifiableMap(bundles);
+		this.packageIndex = packageIndex;
+		this.transitiveResolver = new TransitiveResolver(packageIndex);
+	}
+
+	/**
+	 * Creates the snapshot following this one, with a batch of changes
+	 * applied. This snapshot is left untouched.
+	 *
+	 * @param added
+	 *            the bundles added, replacing the previous version of the same
+	 *            file if any
+	 * @param removed
+	 *            the file names of the bundles removed
+	 * @return the new snapshot
+	 */
+	public RegistrySnapshot apply(Collection<JarBundleFile> added,
+			Collection<String> removed) {
+		Map<String, JarBundleFile> newBundles = new HashMap<String, JarBundleFile>(
+				bundles);
+		PackageIndex newIndex = new PackageIndex(packageIndex);
+		for (String fileName : removed) {
+			JarBundleFile old = newBundles.remove(fileName);
+			if (old != null)
+				newIndex.remove(old);
+		}
+		for (JarBundleFile bundle : added) {
+			JarBundleFile old = newBundles.put(bundle.getName(), bundle);
+			if (old != null)
+				newIndex.remove(old);
+			newIndex.add(bundle);
+		}
+		return new RegistrySnapshot(runId, generation + 1, newBundles,
+				newIndex);
+	}
+
+	/**
+	 * Gets the id of the run of the server this snapshot belongs to.
+	 *
+	 * @return the run id, not negative
+	 */
+	public long getRunId() {
+		return runId;
+	}
+
+	/**
+	 * Gets the generation of this snapshot, along with its run id, as sent
+	 * to clients and given back by them, ex.: <i>8412337190:12</i>.
+	 *
+	 * @return the run id and generation, separated by a colon
+	 */
+	public String getGenerationTag() {
+		return runId + ":" + generation;
+	}
+
+	/**
+	 * Gets the generation of this snapshot.
+	 *
+	 * @return the generation, incremented by each batch of changes
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Gets the registered bundles.
+	 *
+	 * @return the read only bundles, by file name
+	 */
+	public Map<String, JarBundleFile> getBundles() {
+		return bundles;
+	}
+
+	/**
+	 * Seeks for the bundle providing a given package with a given version.
+	 *
+	 * @param packageNameManifest
+	 *            the package name in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundle or null if no bundle provides a compatible package.
+	 *         When several bundles provide it, the one with the highest
+	 *         compatible version wins.
+	 */
+	public JarBundleFile getBundleProvidingPackage(String packageNameManifest) {
+		return packageIndex.getProvider(packageNameManifest);
+	}
+
+	/**
+	 * Seeks for every bundle needed at runtime by a list of packages: their
+	 * providers and, transitively, the providers of what those import.
+	 *
+	 * @param packageNamesManifest
+	 *            the package names in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundles needed and the mandatory imports no bundle provides
+	 */
+	public TransitiveResolver.Resolution getTransitiveClosure(
+			List<String> packageNamesManifest) {
+		return transitiveResolver.resolve(packageNamesManifest);
+	}
+}
@@ -0,0 +1,207 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Class ResolutionCache.
+ * <p>
+ * Remembers which bundle provides an import clause, since builds keep asking
+ * the same few clauses (ex.: <i>org.osgi.framework;version="1.5.0"</i>).
+ * Clauses no bundle provides are remembered too. Each answer is tagged with
+ * the registry generation it was resolved in and only reused for that same
+ * generation, so a new generation invalidates the whole cache at once without
+ * touching it; stale answers just age out.
+ * <p>
+ * The cache is bounded and split into segments, each one an LRU map with its
+ * own lock, so concurrent lookups of different clauses rarely wait for each
+ * other.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class ResolutionCache {
+
+	/** The number of segments, a power of two. */
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * A resolved clause.
+	 */
+	private final static class Resolution {
+		private final long generation;
+		private final JarBundleFile bundle;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param generation
+		 *            the generation the clause was resolved in
+		 * @param bundle
+		 *            the provider, or null if there is none
+		 */
+		public Resolution(long generation, JarBundleFile bundle) {
+			this.generation = generation;
+			this.bundle = bundle;
+		}
+	}
+
+	/**
+	 * An LRU segment of the cache.
+	 */
+	private final static class Segment extends LinkedHashMap<String, Resolution> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		/**
+		 * Instantiates a new segment.
+		 *
+		 * @param capacity
+		 *            the maximum number of entries
+		 */
+		public Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/** The segments. */
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/** The hits. */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** The misses. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Instantiates a new resolution cache.
+	 *
+	 * @param capacity
+	 *            the maximum number of clauses remembered
+	 */
+	public ResolutionCache(int capacity) {
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(Math.max(capacity / SEGMENTS, 1));
+	}
+
+	/**
+	 * Seeks for the bundle providing an import clause in a registry
+	 * snapshot, reusing the last answer if it was resolved in that same
+	 * snapshot generation.
+	 *
+	 * @param snapshot
+	 *            the registry snapshot
+	 * @param packageNameManifest
+	 *            the package name in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the bundle or null if no bundle provides a compatible package.
+	 */
+	public JarBundleFile getBundleProvidingPackage(RegistrySnapshot snapshot,
+			String packageNameManifest) {
+		String clause = normalize(packageNameManifest);
+		long generation = snapshot.getGeneration();
+		Segment segment = segmentFor(clause);
+		Resolution entry;
+		synchronized (segment) {
+			entry = segment.get(clause);
+		}
+		if (entry != null && entry.generation == generation) {
+			hits.incrementAndGet();
+			return entry.bundle;
+		}
+		misses.incrementAndGet();
+		JarBundleFile bundle = snapshot.getBundleProvidingPackage(clause);
+		synchronized (segment) {
+			/*
+			 * A request still on an older snapshot mustn't replace a newer
+			 * answer.
+			 */
+			entry = segment.get(clause);
+			if (entry == null || entry.generation < generation)
+				segment.put(clause, new Resolution(generation, bundle));
+		}
+		return bundle;
+	}
+
+	/**
+	 * Normalizes an import clause, so the same clause written with different
+	 * spacing is cached once.
+	 *
+	 * @param clause
+	 *            the clause
+	 * @return the clause without whitespace
+	 */
+	private static String normalize(String clause) {
+		for (int i = 0; i < clause.length(); i++)
+			if (Character.isWhitespace(clause.charAt(i))) {
+				StringBuilder sb = new StringBuilder(clause.length());
+				for (int j = 0; j < clause.length(); j++)
+					if (!Character.isWhitespace(clause.charAt(j)))
+						sb.append(clause.charAt(j));
+				return sb.toString();
+			}
+		return clause;
+	}
+
+	/**
+	 * Gets the segment of a clause.
+	 *
+	 * @param clause
+	 *            the normalized clause
+	 * @return the segment
+	 */
+	private Segment segmentFor(String clause) {
+		int h = clause.hashCode();
+		h ^= h >>> 16;
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Gets the number of clauses answered from the cache.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of clauses resolved from scratch.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the ratio of clauses answered from the cache.
+	 *
+	 * @return the hit ratio, between 0 and 1
+	 */
+	public double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Gets the number of clauses remembered, including the stale ones.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments)
+			synchronized (segment) {
+				size += segment.size();
+			}
+		return size;
+	}
+}
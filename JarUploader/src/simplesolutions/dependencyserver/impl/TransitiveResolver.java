@@ -0,0 +1,168 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import simplesolutions.dependencyserver.impl.JarBundleFile.PackageVersion;
+
+/**
+ * The Class TransitiveResolver.
+ * <p>
+ * Computes the complete set of bundles needed at runtime by a set of imports:
+ * the bundles providing them, the bundles providing what those import, and so
+ * on. Imports declared with <i>resolution:=optional</i> are not followed, and
+ * import cycles are fine.
+ * <p>
+ * The closure of each bundle is memoized. A resolver works on the package
+ * index of a single registry snapshot, so each generation gets a new one and
+ * the memoized closures never go stale.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class TransitiveResolver {
+
+	/**
+	 * The result of a resolution.
+	 */
+	public final static class Resolution {
+
+		/** The bundles needed, in the order they were found. */
+		private final Set<JarBundleFile> bundles;
+
+		/** The mandatory imports no bundle provides. */
+		private final Set<String> unresolved;
+
+		/**
+		 * Instantiates a new resolution.
+		 *
+		 * @param bundles
+		 *            the bundles
+		 * @param unresolved
+		 *            the unresolved imports
+		 */
+		private Resolution(Set<JarBundleFile> bundles, Set<String> unresolved) {
+			this.bundles = bundles;
+			this.unresolved = unresolved;
+		}
+
+		/**
+		 * Gets the bundles needed.
+		 *
+		 * @return the bundles
+		 */
+		public Set<JarBundleFile> getBundles() {
+			return Collections.unmodifiableSet(bundles);
+		}
+
+		/**
+		 * Gets the mandatory imports no bundle provides, either requested
+		 * directly or imported by one of the needed bundles.
+		 *
+		 * @return the unresolved imports, in the OSGi manifest.mf format
+		 */
+		public Set<String> getUnresolved() {
+			return Collections.unmodifiableSet(unresolved);
+		}
+	}
+
+	/** The index used to find the provider of each import. */
+	private final PackageIndex packageIndex;
+
+	/** The memoized closure of each bundle. */
+	private final Map<JarBundleFile, Resolution> closures = new ConcurrentHashMap<JarBundleFile, Resolution>();
+
+	/**
+	 * Instantiates a new transitive resolver.
+	 *
+	 * @param packageIndex
+	 *            the index used to find the provider of each import
+	 */
+	public TransitiveResolver(PackageIndex packageIndex) {
+		this.packageIndex = packageIndex;
+	}
+
+	/**
+	 * Resolves a set of imports and everything they need.
+	 *
+	 * @param packageNamesManifest
+	 *            the imports, in the OSGi manifest.mf format, ex.:
+	 *            <i>foo.bar.lol;version="1.2.3"</i> or just <i>foo.bar.lol</i>
+	 * @return the resolution
+	 */
+	public Resolution resolve(List<String> packageNamesManifest) {
+		Set<JarBundleFile> bundles = new LinkedHashSet<JarBundleFile>();
+		Set<String> unresolved = new LinkedHashSet<String>();
+		for (String p : packageNamesManifest) {
+			JarBundleFile provider = packageIndex.getProvider(p);
+			if (provider == null) {
+				if (!ManifestHeaderParser.isOptionalImport(p))
+					unresolved.add(p);
+				continue;
+			}
+			if (bundles.contains(provider))
+				continue;
+			Resolution closure = getClosure(provider, closures);
+			bundles.addAll(closure.bundles);
+			unresolved.addAll(closure.unresolved);
+		}
+		return new Resolution(bundles, unresolved);
+	}
+
+	/**
+	 * Gets the closure of a bundle, computing it if it isn't memoized.
+	 * <p>
+	 * The closure is found with a depth first walk over the imports. Bundles
+	 * already visited are skipped, which takes care of cycles, and bundles
+	 * whose closure is already memoized contribute it without being walked.
+	 *
+	 * @param root
+	 *            the bundle
+	 * @param memo
+	 *            the memoized closures
+	 * @return the closure, including the bundle itself
+	 */
+	private Resolution getClosure(JarBundleFile root,
+			Map<JarBundleFile, Resolution> memo) {
+		Resolution closure = memo.get(root);
+		if (closure != null)
+			return closure;
+		Set<JarBundleFile> bundles = new LinkedHashSet<JarBundleFile>();
+		Set<String> unresolved = new LinkedHashSet<String>();
+		List<JarBundleFile> toVisit = new ArrayList<JarBundleFile>();
+		toVisit.add(root);
+		bundles.add(root);
+		while (!toVisit.isEmpty()) {
+			JarBundleFile bundle = toVisit.remove(toVisit.size() - 1);
+			for (Map.Entry<String, PackageVersion> e : bundle
+					.getImportedPackages().entrySet()) {
+				if (bundle.isOptionalImport(e.getKey()))
+					continue;
+				JarBundleFile provider = packageIndex.getProviderForImport(
+						e.getKey(), e.getValue());
+				if (provider == null) {
+					unresolved.add(e.getKey() + ";version=\"" + e.getValue()
+							+ "\"");
+					continue;
+				}
+				if (bundles.contains(provider))
+					continue;
+				Resolution known = memo.get(provider);
+				if (known != null) {
+					bundles.addAll(known.bundles);
+					unresolved.addAll(known.unresolved);
+				} else {
+					bundles.add(provider);
+					toVisit.add(provider);
+				}
+			}
+		}
+		closure = new Resolution(bundles, unresolved);
+		memo.put(root, closure);
+		return closure;
+	}
+}
@@ -1,10 +1,17 @@
 package simplesolutions.dependencyserver.impl;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * XML DataBase used to store in a XML all the registered jars.
@@ -33,26 +40,134 @@ public final class XMLDataBase {
 		String toXML();
 	}
 
+	/**
+	 * The contents.xml of a registry generation, rendered once and served
+	 * from memory as is or gzipped.
+	 */
+	public final static class Document {
+
+		/** The XML. */
+		private final byte[] content;
+
+		/** The gzipped XML. */
+		private final byte[] gzippedContent;
+
+		/** The entity tag of the XML. */
+		private final String eTag;
+
+		/** The time the document was rendered. */
+		private final long lastModified;
+
+		/** The registry generation the document was rendered from. */
+		private final long generation;
+
+		/**
+		 * Instantiates a new document.
+		 * 
+		 * @param content
+		 *            the XML
+		 * @param gzippedContent
+		 *            the gzipped XML
+		 * @param eTag
+		 *            the entity tag of the XML
+		 * @param lastModified
+		 *            the time the document was rendered
+		 * @param generation
+		 *            the registry generation the document was rendered from
+		 */
+		private Document(byte[] content, byte[] gzippedContent, String eTag,
+				long lastModified, long generation) {
+			this.content = content;
+			this.gzippedContent = gzippedContent;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.generation = generation;
+		}
+
+		/**
+		 * Gets the XML. The array must not be modified.
+		 * 
+		 * @param gzipped
+		 *            if the gzipped XML is wanted
+		 * @return the content
+		 */
+		public byte[] getContent(boolean gzipped) {
+			return gzipped ? gzippedContent : content;
+		}
+
+		/**
+		 * Gets the strong HTTP entity tag of the XML. Each encoding has its
+		 * own tag, as their bytes differ.
+		 * 
+		 * @param gzipped
+		 *            if the tag of the gzipped XML is wanted
+		 * @return the quoted entity tag
+		 */
+		public String getETag(boolean gzipped) {
+			return gzipped ? eTag.substring(0, eTag.length() - 1) + "-gzip\""
+					: eTag;
+		}
+
+		/**
+		 * Gets the time the document was rendered.
+		 * 
+		 * @return the time, in milliseconds since the epoch
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Gets the registry generation the document was rendered from.
+		 * 
+		 * @return the generation
+		 */
+		public long getGeneration() {
+			return generation;
+		}
+	}
+
 	/** The Constant FILE_NAME. */
 	public static final String FILE_NAME = "contents.xml";
 
-	/** The file in. */
-	private static FileInputStream fileIn = null;
-
-	/** The file out. */
-	private static FileOutputStream fileOut = null;
+	/** The last rendered document, or null if nothing was rendered yet. */
+	private static volatile Document document = null;
 
 	/**
-	 * Close file.
+	 * Renders a registry snapshot and publishes the result to be served from
+	 * memory. The XML file isn't touched, see {@link #saveFile()}.
 	 * 
+	 * @param registry
+	 *            the registry snapshot to render
 	 * @return true, if successful
 	 */
-	private static boolean closeFile() {
+	public synchronized static boolean publish(RegistrySnapshot registry) {
 		try {
-			fileIn.close();
-			fileOut.flush();
-			fileOut.close();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			OutputStream out = new DigestOutputStream(bytes, digest);
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n\t<bundles>\r\n"
+					.getBytes());
+			for (Map.Entry<String, JarBundleFile> o : registry.getBundles()
+					.entrySet())
+				out.write(("\t" + o.getValue().toXML() + "\r\n").getBytes());
+			out.write("\t</bundles>\r\n".getBytes());
+			out.close();
+			byte[] content = bytes.toByteArray();
+
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream(
+					content.length / 8);
+			GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+			gzip.write(content);
+			gzip.close();
+
+			document = new Document(content, gzipped.toByteArray(), "\""
+					+ JarLoader.toHex(digest.digest()) + "\"",
+					System.currentTimeMillis(), registry.getGeneration());
 			return true;
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return false;
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
@@ -60,18 +175,22 @@ public final class XMLDataBase {
 	}
 
 	/**
-	 * Open file.
+	 * Saves the last published document into the XML file. The file is
+	 * written aside and renamed over the old one, so it's never seen half
+	 * written.
 	 * 
 	 * @return true, if successful
 	 */
-	private static boolean openFile() {
+	public synchronized static boolean saveFile() {
+		Document current = document;
+		if (current == null)
+			return false;
 		try {
-			File fileHandler = new File(FILE_NAME);
-			if (!fileHandler.exists()) {
-				fileHandler.createNewFile();
-			}
-			fileIn = new FileInputStream(fileHandler);
-			fileOut = new FileOutputStream(fileHandler);
+			Path tmp = Paths.get(FILE_NAME + ".tmp");
+			Files.write(tmp, current.getContent(false));
+			Files.move(tmp, Paths.get(FILE_NAME),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
 			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -80,28 +199,11 @@ public final class XMLDataBase {
 	}
 
 	/**
-	 * Save data into XML file.
+	 * Gets the last rendered document.
 	 * 
-	 * @param registry
-	 * 
-	 * @return true, if successful
+	 * @return the document, or null if nothing was rendered yet.
 	 */
-	public synchronized static boolean save(Map<String, JarBundleFile> registry) {
-		try {
-			if (!openFile())
-				return false;
-			fileOut.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n\t<bundles>\r\n"
-					.getBytes());
-			for (Map.Entry<String, JarBundleFile> o : registry.entrySet())
-				fileOut.write(("\t" + o.getValue().toXML() + "\r\n").getBytes());
-			fileOut.write("\t</bundles>\r\n".getBytes());
-			fileOut.flush();
-			if (!closeFile())
-				return false;
-			return true;
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
+	public static Document getDocument() {
+		return document;
 	}
 }
@@ -0,0 +1,87 @@
+package simplesolutions.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The stream a HTTP response is written to. Besides the usual buffered writes
+ * it can send file regions straight to the socket with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, letting the
+ * kernel copy the bytes (sendfile) without them ever reaching user space.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ *
+ */
+public final class ChannelOutputStream extends DataOutputStream {
+
+	/** The size of the buffer used for headers and small bodies. */
+	private static final int BUFFER_SIZE = 1024 * 8;
+
+	/** The channel the response goes to. */
+	private final WritableByteChannel channel;
+
+	/**
+	 * Instantiates a new channel output stream.
+	 *
+	 * @param channel
+	 *            the channel, in blocking mode.
+	 */
+	public ChannelOutputStream(WritableByteChannel channel) {
+		super(new BufferedOutputStream(Channels.newOutputStream(channel),
+				BUFFER_SIZE));
+		this.channel = channel;
+	}
+
+	/**
+	 * Sends a region of a file, after flushing what was written before.
+	 *
+	 * @param file
+	 *            the file channel
+	 * @param position
+	 *            the position in the file of the first byte to send
+	 * @param count
+	 *            the number of bytes to send
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred, or that the file
+	 *             got shorter while being sent.
+	 */
+	public void transferFrom(FileChannel file, long position, long count)
+			throws IOException {
+		flush();
+		long end = position + count;
+		while (position < end) {
+			long sent = file.transferTo(position, end - position, channel);
+			if (sent <= 0 && position >= file.size())
+				throw new IOException("File truncated while being sent.");
+			position += sent;
+		}
+	}
+
+	/**
+	 * Sends a region of a buffer (ex.: a file cached in memory), after
+	 * flushing what was written before. The buffer position and limit are
+	 * left untouched.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @param position
+	 *            the position in the buffer of the first byte to send
+	 * @param count
+	 *            the number of bytes to send
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void transferFrom(ByteBuffer buffer, int position, int count)
+			throws IOException {
+		flush();
+		ByteBuffer region = buffer.duplicate();
+		region.limit(position + count).position(position);
+		while (region.hasRemaining())
+			channel.write(region);
+	}
+}
@@ -0,0 +1,59 @@
+package simplesolutions.util;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the dates used in HTTP headers (RFC 1123).
+ * 
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ * 
+ */
+public final class HttpDate {
+
+	/** The date pattern. */
+	private static final String PATTERN = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	/** SimpleDateFormat isn't thread safe, we keep one per thread. */
+	private static final ThreadLocal<DateFormat> FORMAT = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			DateFormat format = new SimpleDateFormat(PATTERN, Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
+
+	/**
+	 * Formats a date.
+	 * 
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @return the formatted date, ex.: <i>Sun, 06 Nov 1994 08:49:37 GMT</i>
+	 */
+	public static String format(long time) {
+		return FORMAT.get().format(new Date(time));
+	}
+
+	/**
+	 * Parses a date.
+	 * 
+	 * @param date
+	 *            the date as sent in a header
+	 * @return the time in milliseconds since the epoch, or -1 if the date is
+	 *         missing or malformed.
+	 */
+	public static long parse(String date) {
+		if (date == null)
+			return -1;
+		try {
+			return FORMAT.get().parse(date).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+}
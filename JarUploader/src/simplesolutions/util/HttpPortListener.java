@@ -1,150 +1,516 @@
 package simplesolutions.util;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simplesolutions.dependencyserver.impl.HttpServer;
 
 /**
  * Listens for client connections.
- * 
+ * <p>
+ * A single selector thread accepts the connections and reads the request
+ * headers without blocking, parsing them straight from the received bytes.
+ * Once a request is complete its connection is handed to a small fixed pool
+ * of workers that write the response, so thousands of connections cost only a
+ * handful of threads.
+ * <p>
+ * Connections are persistent (HTTP/1.1 keep-alive): after a response the
+ * worker answers, in order, any pipelined request already received and then
+ * gives the connection back to the selector to wait for the next one.
+ * <p>
+ * A request whose answer the server postpones (long polling, see
+ * {@link HttpRequest#suspend(long)}) parks its connection without holding a
+ * worker, until {@link #resumeSuspended()} is called or its timeout expires.
+ *
  * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
- * 
+ *
  */
 public final class HttpPortListener extends Thread {
 	public final int port;
-	private ServerSocket socket;
+	private ServerSocketChannel socket;
+	private Selector selector;
 	private HttpServer myServer;
 
+	/** The workers writing the responses. */
+	private final ExecutorService workers;
+
+	/** The connections given back by the workers, to be watched again. */
+	private final Queue<Connection> idleConnections = new ConcurrentLinkedQueue<Connection>();
+
+	/** The connections whose request answer was postponed. */
+	private final Set<Connection> suspendedConnections = Collections
+			.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+	/**
+	 * Incremented by each {@link #resumeSuspended()}, so a request suspended
+	 * while it runs is resumed right away.
+	 */
+	private final AtomicLong resumeCount = new AtomicLong();
+
+	/** How often the timeouts of suspended requests are checked. */
+	private static final long SUSPENDED_CHECK_PERIOD = 1000;
+
+	/**
+	 * How long a connection may stay idle, or take to send a request header,
+	 * before we close it, in milliseconds.
+	 */
+	private final long idleTimeout;
+
+	/** The maximum number of requests served per connection. */
+	private final int maxRequestsPerConnection;
+
+	/** The initial size of each connection's request buffer. */
+	private static final int REQUEST_BUFFER_SIZE = 1024 * 2;
+
+	/** The biggest request header we accept. */
+	private static final int MAX_REQUEST_HEADER_SIZE = 1024 * 64;
+
 	/**
 	 * Creates the TCP server.
-	 * 
+	 *
 	 * @param port
 	 *            to listen
+	 * @param s
+	 *            the server answering the requests
+	 * @param idleTimeout
+	 *            how long a connection may stay idle, in milliseconds
+	 * @param maxRequestsPerConnection
+	 *            the maximum number of requests served per connection
 	 */
-	public HttpPortListener(int port, HttpServer s) {
+	public HttpPortListener(int port, HttpServer s, long idleTimeout,
+			int maxRequestsPerConnection) {
 		super("Http Port Listener");
 		this.port = port;
 		this.myServer = s;
+		this.idleTimeout = idleTimeout;
+		this.maxRequestsPerConnection = maxRequestsPerConnection;
+		this.workers = Executors.newFixedThreadPool(Math.max(4, Runtime
+				.getRuntime().availableProcessors() * 2), new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Http Worker " + (++count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
 		try {
-			this.socket = new ServerSocket(port);
+			this.selector = Selector.open();
+			this.socket = ServerSocketChannel.open();
+			this.socket.socket().setReuseAddress(true);
+			this.socket.socket().bind(new InetSocketAddress(port));
+			this.socket.configureBlocking(false);
+			this.socket.register(selector, SelectionKey.OP_ACCEPT);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Shuts the listener down.
-	 * 
-	 * Note: I should have a list with all active threads so that I could kill
-	 * them individually before destroying the listener, but recently the Java
-	 * Garbage collector does that automatically for us as soon as all threads
-	 * return, so I just need to worry with breaking the while(trues) kind of
-	 * loops. Lesson: Never use while(true) loops, use
-	 * while(socket.isNotClosed()) type of loops instead.
+	 * Gets the port the listener is bound to.
+	 *
+	 * @return the port, the one picked by the system if 0 was asked, or -1
+	 *         if the listener couldn't bind
+	 */
+	public int getPort() {
+		return socket == null ? -1 : socket.socket().getLocalPort();
+	}
+
+	/**
+	 * Shuts the listener down, closing every connection still waiting for a
+	 * request. Responses being written by the workers are let to finish.
 	 */
 	public void shutdown() {
 		try {
-			if (!socket.isClosed())
+			if (selector != null && selector.isOpen()) {
+				for (SelectionKey key : selector.keys())
+					key.channel().close();
+				selector.close();
+			}
+			if (socket != null && socket.isOpen())
 				this.socket.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		for (Connection c : suspendedConnections)
+			c.close();
+		suspendedConnections.clear();
+		workers.shutdown();
 	}
 
 	/**
-	 * Method called when the thread starts, listens to port for client
-	 * connections.
+	 * Method called when the thread starts, accepts client connections and
+	 * reads their requests.
 	 */
 	public void run() {
-		while (socket != null && !socket.isClosed()) {
-			ConnectionThread t = null;
+		List<Connection> ready = new ArrayList<Connection>();
+		while (socket != null && selector.isOpen()) {
 			try {
-				Socket newConnection = this.socket.accept();
-				BufferedReader inFromClient = new BufferedReader(
-						new InputStreamReader(newConnection.getInputStream()));
-				DataOutputStream outToClient = new DataOutputStream(
-						newConnection.getOutputStream());
-				t = new ConnectionThread(inFromClient, outToClient,
-						newConnection);
-				t.start();
+				selector.select(Math.max(
+						Math.min(idleTimeout / 2, SUSPENDED_CHECK_PERIOD), 1));
+				registerIdleConnections();
+				resumeExpiredConnections();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else if (key.isReadable()) {
+						Connection c = (Connection) key.attachment();
+						if (c.read())
+							ready.add(c);
+					}
+				}
+				closeExpiredConnections();
+				if (!ready.isEmpty())
+					dispatch(ready);
 			} catch (IOException e) {
 				e.getMessage();
+			} catch (RuntimeException e) {
+				/*
+				 * A closed selector (shutdown) ends the loop.
+				 */
+				if (selector.isOpen())
+					e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Accepts a pending client connection.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = socket.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+	}
+
+	/**
+	 * Watches again the connections given back by the workers.
+	 */
+	private void registerIdleConnections() {
+		Connection c;
+		while ((c = idleConnections.poll()) != null) {
+			try {
+				c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+				c.lastActivity = System.currentTimeMillis();
+			} catch (IOException e) {
+				c.close();
+			}
+		}
+	}
+
+	/**
+	 * Asks the server again to answer every suspended request, because what
+	 * they wait for may have changed. Those still not ready are suspended
+	 * again.
+	 */
+	public void resumeSuspended() {
+		resumeCount.incrementAndGet();
+		for (Connection c : suspendedConnections)
+			resume(c);
+	}
+
+	/**
+	 * Asks the server to answer the suspended requests whose timeout expired.
+	 */
+	private void resumeExpiredConnections() {
+		for (Connection c : suspendedConnections)
+			if (c.request.isExpired())
+				resume(c);
+	}
+
+	/**
+	 * Hands a suspended connection back to the workers, unless another
+	 * thread already did.
+	 *
+	 * @param c
+	 *            the connection
+	 */
+	private void resume(Connection c) {
+		if (suspendedConnections.remove(c)) {
+			c.request.resume();
+			try {
+				workers.execute(new ResponseWriter(c));
+			} catch (RejectedExecutionException e) {
+				c.close(); // Shutting down.
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections that stayed idle, or didn't send a complete
+	 * request, for too long.
+	 */
+	private void closeExpiredConnections() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof Connection
+					&& now - ((Connection) attachment).lastActivity > idleTimeout)
+				((Connection) attachment).close();
+		}
+	}
+
+	/**
+	 * Hands the connections with a complete request to the workers.
+	 * <p>
+	 * Their keys were canceled when the request was read, a selectNow() makes
+	 * the selector forget them so they can be switched to blocking mode.
+	 *
+	 * @param ready
+	 *            the connections with a complete request.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void dispatch(List<Connection> ready) throws IOException {
+		selector.selectNow();
+		for (Connection c : ready) {
+			try {
+				c.channel.configureBlocking(true);
+				workers.execute(new ResponseWriter(c));
+			} catch (IOException e) {
+				c.close();
 			}
 		}
+		ready.clear();
 	}
 
 	/**
-	 * This thread handles each client connection individually getting the
-	 * requested URL from the HTTP headers and asking the HTTP Server the
-	 * page/HTML it should delivered as response to the client's request.
-	 * 
-	 * @author NeMewSys
-	 * 
+	 * A client connection and the bytes received from it.
 	 */
-	private class ConnectionThread extends Thread {
-		private BufferedReader in;
-		private DataOutputStream out;
-		private Socket conn;
+	private final class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocate(REQUEST_BUFFER_SIZE);
+		private HttpRequest request;
+		private int servedRequests = 0;
+		private volatile long lastActivity = System.currentTimeMillis();
 
-		public ConnectionThread(BufferedReader in, DataOutputStream out,
-				Socket conn) {
-			super("Connection Thread");
-			this.in = in;
-			this.out = out;
-			this.conn = conn;
+		public Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
 		}
 
 		/**
-		 * Reads the header sent by the client and parses it to get the
-		 * requested URL.
+		 * Reads what's available from the socket and tries to parse the
+		 * request header.
+		 *
+		 * @return true, if a complete request was read and the connection
+		 *         must be handed to a worker.
 		 */
-		public void run() {
+		public boolean read() {
 			try {
-				// This timeout variable is used to count the number of retrials
-				// to get the HTTP headers from the client.
-				int timeOut = 0;
-				String requestHeader = "";
-				while (conn.isConnected()) {
-					if (in.ready()) {
-						String tmp = in.readLine();
-						if (tmp.length() != 0) {
-							requestHeader += tmp + "\n";
-							timeOut = 0;
-						} else {
-							String url = getRequestedUrl(requestHeader);
-							myServer.getPackageFile(url,out);
-							break;
-						}
-					} else if (timeOut >= 3) { // Severe connection problems
-												// detected
-						out.writeBytes(myServer.errorPage());
-						break;
-					} else {
-						timeOut++;
-						Thread.sleep(100); // wait a bit...
-					}
+				if (!in.hasRemaining()) {
+					if (in.capacity() >= MAX_REQUEST_HEADER_SIZE)
+						throw new ProtocolException("Request header too large.");
+					ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+					in.flip();
+					bigger.put(in);
+					in = bigger;
 				}
-				conn.close();
-			} catch (Exception e) {
-				System.err.println("Connection canceled.");
-				//e.printStackTrace();
+				if (channel.read(in) < 0) {
+					close();
+					return false;
+				}
+				lastActivity = System.currentTimeMillis();
+				request = HttpRequest.parse(in);
+				if (request == null)
+					return false;
+				key.cancel();
+				return true;
+			} catch (ProtocolException e) {
+				/*
+				 * Severe connection problems detected.
+				 */
+				try {
+					channel.write(ByteBuffer.wrap(myServer.errorPage()
+							.getBytes("ISO-8859-1")));
+				} catch (IOException e1) {
+					// Nothing to do here.
+				}
+				close();
+			} catch (IOException e) {
+				close();
 			}
+			return false;
 		}
 
 		/**
-		 * Parses the HTTP header to get the requested URL.
+		 * Closes the connection.
+		 */
+		public void close() {
+			try {
+				key.cancel();
+				channel.close();
+			} catch (IOException e) {
+				// Nothing to do here.
+			}
+		}
+	}
+
+	/**
+	 * The body of a request, made of the bytes already received with the
+	 * header followed by the bytes still to be read from the socket (in
+	 * blocking mode), up to the request Content-Length.
+	 */
+	private static final class RequestBody extends InputStream {
+		private final Connection connection;
+		private long remaining;
+
+		public RequestBody(Connection connection, long length) {
+			this.connection = connection;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			len = (int) Math.min(len, remaining);
+			int n;
+			ByteBuffer in = connection.in;
+			if (in.position() > 0) {
+				/*
+				 * Bytes received along with the header.
+				 */
+				in.flip();
+				n = Math.min(len, in.remaining());
+				in.get(b, off, n);
+				in.compact();
+			} else {
+				n = connection.channel.read(ByteBuffer.wrap(b, off, len));
+				if (n < 0)
+					throw new EOFException("Connection closed inside the body.");
+			}
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(connection.in.position(), remaining);
+		}
+
+		/**
+		 * Skips what's left of the body.
 		 * 
-		 * @param requestHeader
-		 * @return
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
 		 */
-		private String getRequestedUrl(String requestHeader) {
-			String[] lines = requestHeader.split("\n");
-			return lines[0].split(" ")[1];
+		public void drain() throws IOException {
+			byte[] trash = new byte[1024 * 8];
+			while (read(trash, 0, trash.length) >= 0)
+				;
+		}
+	}
+
+	/**
+	 * This task handles the requests of a client connection, in order, asking
+	 * the HTTP Server the page/file it should deliver as response to each
+	 * one.
+	 */
+	private final class ResponseWriter implements Runnable {
+		private final Connection connection;
+
+		public ResponseWriter(Connection connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			try {
+				ChannelOutputStream out = new ChannelOutputStream(
+						connection.channel);
+				HttpRequest request = connection.request;
+				while (request != null) {
+					RequestBody body = (RequestBody) request.getBody();
+					if (body == null) {
+						/*
+						 * A new request, not a resumed one.
+						 */
+						connection.servedRequests++;
+						if (connection.servedRequests >= maxRequestsPerConnection
+								|| request.getHeader("Transfer-Encoding") != null)
+							request.setKeepAlive(false);
+						body = new RequestBody(connection, Math.max(
+								request.getContentLength(), 0));
+						request.setBody(body);
+					}
+					long resumes = resumeCount.get();
+					connection.request = request;
+					myServer.getPackageFile(request, out);
+					if (request.isSuspended()) {
+						/*
+						 * Park the connection, without a thread, until the
+						 * request can be answered.
+						 */
+						suspendedConnections.add(connection);
+						if (resumeCount.get() != resumes)
+							resume(connection);
+						return;
+					}
+					out.flush();
+					if (!request.isKeepAlive()) {
+						connection.close();
+						return;
+					}
+					/*
+					 * Skip what the server didn't read from the body, the
+					 * next request follows it.
+					 */
+					body.drain();
+					/*
+					 * Answer the pipelined requests already received.
+					 */
+					request = HttpRequest.parse(connection.in);
+				}
+				connection.request = null;
+				connection.channel.configureBlocking(false);
+				idleConnections.add(connection);
+				selector.wakeup();
+			} catch (Exception e) {
+				System.err.println("Connection canceled.");
+				connection.close();
+			}
 		}
 	}
 }
@@ -0,0 +1,285 @@
+package simplesolutions.util;
+
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A HTTP request header, parsed straight from the bytes received by the
+ * {@link HttpPortListener}.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ *
+ */
+public final class HttpRequest {
+
+	/** HTTP headers are plain ISO-8859-1. */
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/** The request method (GET, HEAD, ...). */
+	private final String method;
+
+	/** The requested URL. */
+	private final String url;
+
+	/** The protocol version (HTTP/1.0, HTTP/1.1). */
+	private final String protocol;
+
+	/** The header fields, with lower case names. */
+	private final Map<String, String> headers;
+
+	/** Whether the connection stays open after this request is answered. */
+	private boolean keepAlive;
+
+	/** The request body. */
+	private InputStream body;
+
+	/** If the answer is postponed, see {@link #suspend(long)}. */
+	private volatile boolean suspended;
+
+	/** When a postponed request must be answered anyway, or 0. */
+	private volatile long deadline;
+
+	/**
+	 * Instantiates a new http request.
+	 *
+	 * @param method
+	 *            the method
+	 * @param url
+	 *            the url
+	 * @param protocol
+	 *            the protocol
+	 * @param headers
+	 *            the headers
+	 */
+	private HttpRequest(String method, String url, String protocol,
+			Map<String, String> headers) {
+		this.method = method;
+		this.url = url;
+		this.protocol = protocol;
+		this.headers = headers;
+		String connection = getHeader("Connection");
+		if (protocol.equals("HTTP/1.1"))
+			this.keepAlive = connection == null
+					|| !connection.equalsIgnoreCase("close");
+		else
+			this.keepAlive = connection != null
+					&& connection.equalsIgnoreCase("keep-alive");
+	}
+
+	/**
+	 * Parses a request header from a buffer being filled by the socket.
+	 * <p>
+	 * The buffer is expected in write mode (i.e. the bytes received so far are
+	 * between 0 and its position). If the header is complete its bytes are
+	 * consumed from the buffer and whatever follows it is kept.
+	 *
+	 * @param buffer
+	 *            the buffer, backed by an array.
+	 * @return the request, or null if the header is still incomplete.
+	 * @throws ProtocolException
+	 *             if the header is malformed.
+	 */
+	public static HttpRequest parse(ByteBuffer buffer) throws ProtocolException {
+		final byte[] bytes = buffer.array();
+		final int end = buffer.arrayOffset() + buffer.position();
+		int offset = buffer.arrayOffset();
+		/*
+		 * Seek for the empty line that ends the header.
+		 */
+		int headerEnd = -1;
+		int bodyStart = -1;
+		for (int i = offset; i < end; i++) {
+			if (bytes[i] != '\n')
+				continue;
+			if (i + 1 < end && bytes[i + 1] == '\n') {
+				headerEnd = i;
+				bodyStart = i + 2;
+				break;
+			}
+			if (i + 2 < end && bytes[i + 1] == '\r' && bytes[i + 2] == '\n') {
+				headerEnd = i;
+				bodyStart = i + 3;
+				break;
+			}
+		}
+		if (headerEnd == -1)
+			return null;
+		/*
+		 * Parse the request line and the header fields, line by line.
+		 */
+		String requestLine = null;
+		Map<String, String> headers = new HashMap<String, String>();
+		int lineStart = offset;
+		for (int i = offset; i <= headerEnd; i++) {
+			if (bytes[i] != '\n')
+				continue;
+			int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+			String line = new String(bytes, lineStart, lineEnd - lineStart,
+					ISO_8859_1);
+			lineStart = i + 1;
+			if (requestLine == null) {
+				requestLine = line;
+				continue;
+			}
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				throw new ProtocolException("Malformed header field: " + line);
+			headers.put(line.substring(0, colon).trim().toLowerCase(), line
+					.substring(colon + 1).trim());
+		}
+		String[] tokens = requestLine == null ? new String[0] : requestLine
+				.split(" ");
+		if (tokens.length != 3)
+			throw new ProtocolException("Malformed request line: "
+					+ requestLine);
+		/*
+		 * Keep only what follows the header.
+		 */
+		buffer.flip();
+		buffer.position(bodyStart - buffer.arrayOffset());
+		buffer.compact();
+		return new HttpRequest(tokens[0], tokens[1], tokens[2], headers);
+	}
+
+	/**
+	 * Gets the request method.
+	 *
+	 * @return the method
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Gets the requested URL.
+	 *
+	 * @return the url
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Gets the protocol version.
+	 *
+	 * @return the protocol
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Checks if the connection stays open after this request is answered, in
+	 * which case the response must tell its length.
+	 *
+	 * @return true, if the connection is kept alive
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Sets whether the connection stays open after this request is answered.
+	 * The listener turns it off when the connection has served enough
+	 * requests, the server when it won't read a large request body.
+	 *
+	 * @param keepAlive
+	 *            the new keep alive
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Gets the length of the request body.
+	 *
+	 * @return the Content-Length, or -1 if the client didn't send it.
+	 */
+	public long getContentLength() {
+		String length = getHeader("Content-Length");
+		if (length == null)
+			return -1;
+		try {
+			return Long.parseLong(length);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the request body, which ends after Content-Length bytes. Whatever
+	 * isn't read from it is skipped by the listener.
+	 *
+	 * @return the body stream
+	 */
+	public InputStream getBody() {
+		return body;
+	}
+
+	/**
+	 * Sets the request body.
+	 *
+	 * @param body
+	 *            the body stream
+	 */
+	void setBody(InputStream body) {
+		this.body = body;
+	}
+
+	/**
+	 * Gets a header field.
+	 *
+	 * @param name
+	 *            the field name (case insensitive)
+	 * @return the value, or null if the client didn't send it.
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * Postpones the answer to this request (long polling). Instead of
+	 * writing a response the server returns, and the listener asks it again
+	 * to answer the request when it's told something changed or when the
+	 * timeout expires, whichever comes first. The connection uses no thread
+	 * meanwhile.
+	 *
+	 * @param timeout
+	 *            how long the answer may be postponed, in milliseconds,
+	 *            counted from the first time the request was suspended
+	 */
+	public void suspend(long timeout) {
+		if (deadline == 0)
+			deadline = System.currentTimeMillis() + timeout;
+		suspended = true;
+	}
+
+	/**
+	 * Checks if the answer was postponed.
+	 *
+	 * @return true, if suspended
+	 */
+	public boolean isSuspended() {
+		return suspended;
+	}
+
+	/**
+	 * Checks if the answer of a postponed request can't wait anymore.
+	 *
+	 * @return true, if the request was suspended and its timeout expired
+	 */
+	public boolean isExpired() {
+		return deadline != 0 && System.currentTimeMillis() >= deadline;
+	}
+
+	/**
+	 * Marks a suspended request as being answered again.
+	 */
+	void resume() {
+		suspended = false;
+	}
+}
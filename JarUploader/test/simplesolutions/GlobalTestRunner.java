@@ -1,6 +1,18 @@
 package simplesolutions;
 
+import simplesolutions.dependencyserver.impl.TestBundleArchive;
+import simplesolutions.dependencyserver.impl.TestBundleCache;
+import simplesolutions.dependencyserver.impl.TestBundleIndexFile;
+import simplesolutions.dependencyserver.impl.TestChangeLog;
+import simplesolutions.dependencyserver.impl.TestCompactIndex;
+import simplesolutions.dependencyserver.impl.TestHttpServer;
 import simplesolutions.dependencyserver.impl.TestJarFile;
+import simplesolutions.dependencyserver.impl.TestJarLoader;
+import simplesolutions.dependencyserver.impl.TestManifestHeaderParser;
+import simplesolutions.dependencyserver.impl.TestPackageIndex;
+import simplesolutions.dependencyserver.impl.TestRegistrySnapshot;
+import simplesolutions.dependencyserver.impl.TestResolutionCache;
+import simplesolutions.dependencyserver.impl.TestTransitiveResolver;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 
@@ -19,6 +31,18 @@ public class GlobalTestRunner {
 		// $JUnit-BEGIN$
 
 		suite.addTestSuite(TestJarFile.class);
+		suite.addTestSuite(TestPackageIndex.class);
+		suite.addTestSuite(TestTransitiveResolver.class);
+		suite.addTestSuite(TestBundleIndexFile.class);
+		suite.addTestSuite(TestJarLoader.class);
+		suite.addTestSuite(TestManifestHeaderParser.class);
+		suite.addTestSuite(TestRegistrySnapshot.class);
+		suite.addTestSuite(TestChangeLog.class);
+		suite.addTestSuite(TestCompactIndex.class);
+		suite.addTestSuite(TestHttpServer.class);
+		suite.addTestSuite(TestBundleCache.class);
+		suite.addTestSuite(TestBundleArchive.class);
+		suite.addTestSuite(TestResolutionCache.class);
 
 		// $JUnit-END$
 		return suite;
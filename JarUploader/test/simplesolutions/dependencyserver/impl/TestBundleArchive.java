@@ -0,0 +1,146 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import simplesolutions.util.ChannelOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * The Class TestBundleArchive.
+ */
+public final class TestBundleArchive extends TestCase {
+
+	/** The bundles archived, removed from the repository folder afterwards. */
+	private static final String[] FILE_NAMES = { "archive_a.jar",
+			"archive_b.jar" };
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() {
+		for (String fileName : FILE_NAMES)
+			new File(Main.getJarsFolderName() + File.separator + fileName)
+					.delete();
+		TestUtils.deleteTemporaryFolder();
+	}
+
+	/**
+	 * Writes a bundle in the repository folder.
+	 * 
+	 * @param fileName
+	 *            the file name
+	 * @param manifest
+	 *            the manifest content
+	 * @return the bundle
+	 */
+	private static JarBundleFile createBundle(String fileName, String manifest) {
+		new File(Main.getJarsFolderName()).mkdirs();
+		File file = TestUtils.moveFileToJarsFolder(TestUtils
+				.createTemporaryBundle(fileName, manifest));
+		return new JarBundleFile(file.getPath(), null, null, file.length(),
+				file.lastModified(), null);
+	}
+
+	/**
+	 * Computes the CRC32 of a file.
+	 * 
+	 * @param fileName
+	 *            the file name
+	 * @return the CRC32
+	 * @throws IOException
+	 */
+	private static long crc(String fileName) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(Files.readAllBytes(Paths.get(fileName)));
+		return crc.getValue();
+	}
+
+	/**
+	 * Test the archive written is a zip of the bundles, stored as they are,
+	 * exactly as long as announced.
+	 * 
+	 * @throws IOException
+	 */
+	public void testWriteTo() throws IOException {
+		JarBundleFile a = createBundle(FILE_NAMES[0], "Bundle-Name: a\r\n");
+		JarBundleFile b = createBundle(FILE_NAMES[1],
+				"Bundle-Name: b\r\nExport-Package: b.api\r\n");
+		File archiveFile = new File("test_temp" + File.separator
+				+ "archive.zip");
+
+		BundleArchive archive = BundleArchive.open(Arrays.asList(a, b),
+				"missing.api");
+		FileChannel channel = FileChannel.open(archiveFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ChannelOutputStream out = new ChannelOutputStream(channel);
+			archive.writeTo(out);
+			out.flush();
+		} finally {
+			channel.close();
+			archive.close();
+		}
+		assertEquals(2, archive.size());
+		assertEquals(archive.getLength(), archiveFile.length());
+
+		/*
+		 * The central directory.
+		 */
+		ZipFile zip = new ZipFile(archiveFile);
+		try {
+			assertEquals(2, zip.size());
+			assertEquals("missing.api", zip.getComment());
+			for (JarBundleFile bundle : Arrays.asList(a, b)) {
+				ZipEntry entry = zip.getEntry(new File(bundle.getName())
+						.getName());
+				assertNotNull(entry);
+				assertEquals(ZipEntry.STORED, entry.getMethod());
+				assertEquals(bundle.getSize(), entry.getSize());
+				assertEquals(bundle.getSize(), entry.getCompressedSize());
+				assertEquals(crc(bundle.getName()), entry.getCrc());
+			}
+		} finally {
+			zip.close();
+		}
+
+		/*
+		 * The local headers and data, in order.
+		 */
+		ZipInputStream in = new ZipInputStream(new FileInputStream(
+				archiveFile));
+		try {
+			for (String fileName : FILE_NAMES) {
+				ZipEntry entry = in.getNextEntry();
+				assertEquals(fileName, entry.getName());
+				byte[] expected = Files.readAllBytes(Paths.get(Main
+						.getJarsFolderName(), fileName));
+				byte[] content = new byte[expected.length + 1];
+				int length = 0;
+				int n;
+				while ((n = in.read(content, length, content.length - length)) > 0)
+					length += n;
+				assertEquals(expected.length, length);
+				assertTrue(Arrays.equals(expected,
+						Arrays.copyOf(content, length)));
+			}
+			assertNull(in.getNextEntry());
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestBundleCache.
+ */
+public final class TestBundleCache extends TestCase {
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() {
+		TestUtils.deleteTemporaryFolder();
+	}
+
+	/**
+	 * Writes a bundle file filled with a byte.
+	 * 
+	 * @param fileName
+	 *            the file name
+	 * @param size
+	 *            the file size
+	 * @return the bundle
+	 * @throws IOException
+	 */
+	private static JarBundleFile createBundle(String fileName, int size)
+			throws IOException {
+		File file = TestUtils.createTemporaryBundle(fileName, "");
+		FileOutputStream out = new FileOutputStream(file);
+		byte[] content = new byte[size];
+		content[0] = (byte) fileName.hashCode();
+		out.write(content);
+		out.close();
+		return new JarBundleFile(file.getPath(), null, null, size,
+				file.lastModified(), null);
+	}
+
+	/**
+	 * Test a popular bundle survives a burst of one-off downloads.
+	 * 
+	 * @throws IOException
+	 */
+	public void testAdmission() throws IOException {
+		BundleCache cache = new BundleCache(100000);
+		JarBundleFile hot = createBundle("hot.jar", 10000);
+		for (int i = 0; i < 5; i++)
+			assertNotNull(cache.get(hot));
+		assertEquals(4, cache.getHits());
+
+		for (int i = 0; i < 30; i++)
+			cache.get(createBundle("once" + i + ".jar", 10000));
+		assertTrue(cache.getRejections() > 0);
+		assertTrue(cache.getSize() <= 100000);
+
+		ByteBuffer content = cache.get(hot);
+		assertEquals(5, cache.getHits());
+		assertEquals(10000, content.remaining());
+		assertEquals((byte) "hot.jar".hashCode(), content.get(0));
+
+		/*
+		 * Bigger than an eighth of the cache.
+		 */
+		assertNull(cache.get(createBundle("huge.jar", 20000)));
+	}
+
+	/**
+	 * Test a bundle replaced by a registry generation is dropped.
+	 * 
+	 * @throws IOException
+	 */
+	public void testInvalidation() throws IOException {
+		BundleCache cache = new BundleCache(100000);
+		JarBundleFile small = createBundle("small.jar", 500);
+		RegistrySnapshot snapshot = new RegistrySnapshot().apply(
+				Collections.singletonList(small),
+				Collections.<String> emptyList());
+		cache.get(small);
+		cache.invalidate(snapshot);
+		assertEquals(1, cache.getEntryCount());
+
+		JarBundleFile replaced = createBundle("small.jar", 600);
+		cache.invalidate(snapshot.apply(Collections.singletonList(replaced),
+				Collections.<String> emptyList()));
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(600, cache.get(replaced).remaining());
+		assertEquals(0, cache.getHits());
+	}
+}
@@ -0,0 +1,97 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestBundleIndexFile.
+ */
+public final class TestBundleIndexFile extends TestCase {
+
+	/**
+	 * Test bundles survive a save/load round trip.
+	 */
+	public void testRoundTrip() {
+		JarBundleFile bundle = new JarBundleFile("jars/a.jar", new String[] {
+				"b.api;version=\"[1,2)\"", "c.api;resolution:=optional" },
+				new String[] { "a.api;version=\"1.0\"", "a.impl" }, 1234,
+				5678, "0123456789abcdef0123456789abcdef01234567");
+		assertTrue(BundleIndexFile.save(Arrays.asList(bundle)));
+
+		Map<String, JarBundleFile> loaded = BundleIndexFile.load();
+		assertEquals(1, loaded.size());
+		JarBundleFile copy = loaded.get("jars/a.jar");
+		assertEquals(1234, copy.getSize());
+		assertEquals(5678, copy.getLastModified());
+		assertEquals(bundle.getContentHash(), copy.getContentHash());
+		assertEquals("1.0", copy.getExportedPackages().get("a.api").toString());
+		assertEquals("0.0.0", copy.getExportedPackages().get("a.impl")
+				.toString());
+		assertEquals("[1,2)", copy.getImportedPackages().get("b.api")
+				.toString());
+		assertFalse(copy.isOptionalImport("b.api"));
+		assertTrue(copy.isOptionalImport("c.api"));
+	}
+
+	/**
+	 * Test a corrupted index is ignored.
+	 * 
+	 * @throws IOException
+	 */
+	public void testCorruptedIndex() throws IOException {
+		JarBundleFile bundle = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api" }, 1, 1, null);
+		assertTrue(BundleIndexFile.save(Arrays.asList(bundle)));
+		RandomAccessFile f = new RandomAccessFile(BundleIndexFile.FILE_NAME,
+				"rw");
+		f.seek(14);
+		f.write(f.read() ^ 0xff);
+		f.close();
+		assertTrue(BundleIndexFile.load().isEmpty());
+
+		FileOutputStream out = new FileOutputStream(BundleIndexFile.FILE_NAME);
+		out.write("garbage".getBytes());
+		out.close();
+		assertTrue(BundleIndexFile.load().isEmpty());
+		new File(BundleIndexFile.FILE_NAME).delete();
+	}
+
+	/**
+	 * Test the journal is replayed over the index, up to a torn record.
+	 * 
+	 * @throws IOException
+	 */
+	public void testJournal() throws IOException {
+		JarBundleFile a = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api" }, 1, 1, null);
+		JarBundleFile b = new JarBundleFile("jars/b.jar", null,
+				new String[] { "b.api;version=\"2.0\"" }, 2, 2, null);
+		assertTrue(BundleIndexFile.save(Arrays.asList(a)));
+		assertTrue(BundleIndexFile.append(Arrays.asList(b),
+				Arrays.asList("jars/a.jar")));
+
+		FileOutputStream out = new FileOutputStream(
+				BundleIndexFile.JOURNAL_FILE_NAME, true);
+		out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+		out.close();
+
+		Map<String, JarBundleFile> loaded = BundleIndexFile.load();
+		assertEquals(1, loaded.size());
+		assertEquals("2.0", loaded.get("jars/b.jar").getExportedPackages()
+				.get("b.api").toString());
+
+		/*
+		 * A full save empties the journal.
+		 */
+		assertTrue(BundleIndexFile.save(loaded.values()));
+		assertFalse(new File(BundleIndexFile.JOURNAL_FILE_NAME).exists());
+		assertEquals(1, BundleIndexFile.load().size());
+		new File(BundleIndexFile.FILE_NAME).delete();
+	}
+}
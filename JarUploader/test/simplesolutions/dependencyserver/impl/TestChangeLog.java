@@ -0,0 +1,83 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestChangeLog.
+ */
+public final class TestChangeLog extends TestCase {
+
+	/**
+	 * Test the changes since a generation are reported once per file, and
+	 * that forgotten or unknown generations ask for a reset.
+	 */
+	public void testChangesSince() {
+		JarBundleFile a = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api" });
+		JarBundleFile a2 = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api;version=\"2.0\"" });
+		JarBundleFile b = new JarBundleFile("jars/b.jar", null,
+				new String[] { "b.api" });
+		JarBundleFile c = new JarBundleFile("jars/c.jar", null,
+				new String[] { "c.api" });
+
+		ChangeLog log = new ChangeLog(2);
+		RegistrySnapshot s0 = new RegistrySnapshot();
+		log.record(s0, Arrays.asList(a, b), Collections.<String> emptyList());
+		RegistrySnapshot s1 = s0.apply(Arrays.asList(a, b),
+				Collections.<String> emptyList());
+		log.record(s1, Arrays.asList(a2, c), Arrays.asList("jars/b.jar"));
+		RegistrySnapshot s2 = s1.apply(Arrays.asList(a2, c),
+				Arrays.asList("jars/b.jar"));
+		log.record(s2, Collections.<JarBundleFile> emptyList(),
+				Arrays.asList("jars/c.jar"));
+		RegistrySnapshot s3 = s2.apply(
+				Collections.<JarBundleFile> emptyList(),
+				Arrays.asList("jars/c.jar"));
+
+		ChangeLog.Changes changes = log.getChangesSince(s3.getRunId(), 1, s3);
+		assertFalse(changes.isReset());
+		assertEquals(3, changes.getGeneration());
+		assertTrue(changes.getAdded().isEmpty()); // c came and went.
+		assertEquals(Arrays.asList(a2), changes.getModified());
+		assertEquals(Arrays.asList("jars/b.jar"), changes.getRemoved());
+
+		assertTrue(log.getChangesSince(s3.getRunId(), 3, s3).isEmpty());
+		assertEquals(Arrays.asList(c), log.getChangesSince(s2.getRunId(), 1, s2).getAdded());
+		assertTrue(log.getChangesSince(s3.getRunId(), 0, s3).isReset());
+		assertTrue(log.getChangesSince(s3.getRunId(), 4, s3).isReset());
+	}
+
+	/**
+	 * Test a generation from a previous run of the server asks for a reset,
+	 * even once this run reached the same generation number.
+	 */
+	public void testChangesSincePreviousRun() {
+		JarBundleFile a = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api" });
+		JarBundleFile b = new JarBundleFile("jars/b.jar", null,
+				new String[] { "b.api" });
+
+		RegistrySnapshot previousRun = new RegistrySnapshot().apply(
+				Arrays.asList(a), Collections.<String> emptyList());
+
+		ChangeLog log = new ChangeLog();
+		RegistrySnapshot s0 = new RegistrySnapshot();
+		log.record(s0, Arrays.asList(b), Collections.<String> emptyList());
+		RegistrySnapshot s1 = s0.apply(Arrays.asList(b),
+				Collections.<String> emptyList());
+		log.record(s1, Arrays.asList(a), Collections.<String> emptyList());
+		RegistrySnapshot s2 = s1.apply(Arrays.asList(a),
+				Collections.<String> emptyList());
+
+		assertTrue(previousRun.getRunId() != s2.getRunId());
+		assertEquals(s2.getRunId(), s0.getRunId());
+		assertFalse(log.getChangesSince(s2.getRunId(), 1, s2).isReset());
+		assertTrue(log.getChangesSince(previousRun.getRunId(), 1, s2)
+				.isReset());
+		assertTrue(log.getChangesSince(-1, 1, s2).isReset());
+	}
+}
@@ -0,0 +1,141 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestCompactIndex.
+ */
+public final class TestCompactIndex extends TestCase {
+
+	/**
+	 * Test a client applying the full index and then a delta ends up with the
+	 * same bundles as the registry.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void testFullAndDelta() throws IOException {
+		JarBundleFile a = new JarBundleFile("jars/a.jar",
+				new String[] { "b.api;version=\"[1.0,2.0)\";resolution:=optional" },
+				new String[] { "a.api;version=\"1.2.3.beta\"" }, 100, 1000,
+				"0123456789abcdef0123456789abcdef01234567");
+		JarBundleFile a2 = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api;version=\"2.0\"" }, 200, 2000, null);
+		JarBundleFile b = new JarBundleFile("jars/b.jar",
+				new String[] { "a.api;version=\"(1.0,1.5]\"" },
+				new String[] { "b.api;version=\"1.0\"" }, 300, 3000, null);
+
+		ChangeLog log = new ChangeLog();
+		RegistrySnapshot s0 = new RegistrySnapshot();
+		log.record(s0, Arrays.asList(a, b), Collections.<String> emptyList());
+		RegistrySnapshot s1 = s0.apply(Arrays.asList(a, b),
+				Collections.<String> emptyList());
+		log.record(s1, Arrays.asList(a2), Arrays.asList("jars/b.jar"));
+		RegistrySnapshot s2 = s1.apply(Arrays.asList(a2),
+				Arrays.asList("jars/b.jar"));
+
+		Map<String, JarBundleFile> client = new HashMap<String, JarBundleFile>();
+		byte[] full = CompactIndex.getFullIndex(s1).getContent();
+		long generation = CompactIndex.apply(full, -1, 0, client);
+		long runId = CompactIndex.getRunId(full);
+		assertEquals(1, generation);
+		assertEquals(s1.getRunId(), runId);
+		assertSameBundles(s1.getBundles(), client);
+		JarBundleFile read = client.get("jars/a.jar");
+		assertTrue(read.isOptionalImport("b.api"));
+		assertEquals("1.2.3.beta", read.getExportedPackages().get("a.api")
+				.getMinVersion().toString());
+		assertTrue(client.get("jars/b.jar").providesPackage(
+				"b.api;version=\"1.0\""));
+
+		byte[] delta = CompactIndex.getDelta(runId, 1, s2,
+				log.getChangesSince(runId, 1, s2)).getContent();
+		assertTrue(delta.length < CompactIndex.getFullIndex(s1).getContent().length);
+		try {
+			CompactIndex.apply(delta, runId, 0, client);
+			fail("A delta from another generation must be refused.");
+		} catch (IOException e) {
+			// Expected.
+		}
+		generation = CompactIndex.apply(delta, runId, generation, client);
+		assertEquals(2, generation);
+		assertSameBundles(s2.getBundles(), client);
+	}
+
+	/**
+	 * Test a client holding an index from a previous run of the server gets
+	 * the full index, and that a delta of this run is refused over it, even
+	 * at the same generation.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void testPreviousRun() throws IOException {
+		JarBundleFile a = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api;version=\"1.0\"" }, 100, 1000, null);
+		JarBundleFile b = new JarBundleFile("jars/b.jar", null,
+				new String[] { "b.api;version=\"1.0\"" }, 200, 2000, null);
+
+		RegistrySnapshot previousRun = new RegistrySnapshot().apply(
+				Arrays.asList(a), Collections.<String> emptyList());
+		Map<String, JarBundleFile> client = new HashMap<String, JarBundleFile>();
+		byte[] full = CompactIndex.getFullIndex(previousRun).getContent();
+		long generation = CompactIndex.apply(full, -1, 0, client);
+		long runId = CompactIndex.getRunId(full);
+
+		ChangeLog log = new ChangeLog();
+		RegistrySnapshot s0 = new RegistrySnapshot();
+		log.record(s0, Arrays.asList(b), Collections.<String> emptyList());
+		RegistrySnapshot s1 = s0.apply(Arrays.asList(b),
+				Collections.<String> emptyList());
+		assertEquals(generation, s1.getGeneration());
+
+		CompactIndex.Encoded index = CompactIndex.getDelta(runId, generation,
+				s1, log.getChangesSince(runId, generation, s1));
+		assertSame(CompactIndex.getFullIndex(s1), index);
+		byte[] delta = CompactIndex.getDelta(s1.getRunId(), 0, s1,
+				log.getChangesSince(s1.getRunId(), 0, s1)).getContent();
+		try {
+			CompactIndex.apply(delta, runId, 0, client);
+			fail("A delta from another run must be refused.");
+		} catch (IOException e) {
+			// Expected.
+		}
+		generation = CompactIndex.apply(index.getContent(), runId, generation,
+				client);
+		assertEquals(1, generation);
+		assertEquals(s1.getRunId(), CompactIndex.getRunId(index.getContent()));
+		assertSameBundles(s1.getBundles(), client);
+	}
+
+	/**
+	 * Asserts two sets of bundles describe the same files and packages.
+	 *
+	 * @param expected
+	 *            the expected bundles
+	 * @param actual
+	 *            the actual bundles
+	 */
+	private static void assertSameBundles(Map<String, JarBundleFile> expected,
+			Map<String, JarBundleFile> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (JarBundleFile e : expected.values()) {
+			JarBundleFile a = actual.get(e.getName());
+			assertEquals(e.getSize(), a.getSize());
+			assertEquals(e.getLastModified(), a.getLastModified());
+			assertEquals(e.getContentHash(), a.getContentHash());
+			assertEquals(e.getExportedPackages().keySet(), a
+					.getExportedPackages().keySet());
+			assertEquals(e.getImportedPackages().keySet(), a
+					.getImportedPackages().keySet());
+			for (String name : e.getImportedPackages().keySet())
+				assertEquals(e.isOptionalImport(name), a.isOptionalImport(name));
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestHttpServer.
+ */
+public final class TestHttpServer extends TestCase {
+
+	/** The server under test, on a port picked by the system. */
+	private HttpServer server;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() {
+		if (Main.getJarRegistry() == null)
+			Main.setJarRegistry(new BundleDatabase());
+		server = new HttpServer(0, 5000, 100, 1000, 1024 * 1024);
+		server.start();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() {
+		server.close();
+	}
+
+	/**
+	 * Builds a request.
+	 * 
+	 * @param method
+	 *            the method
+	 * @param url
+	 *            the url
+	 * @param body
+	 *            the body, or null if none
+	 * @param close
+	 *            if it's the last request of the connection
+	 * @return the request
+	 */
+	private static String request(String method, String url, String body,
+			boolean close) {
+		return method + " " + url + " HTTP/1.1\r\nHost: localhost\r\n"
+				+ (body == null ? "" : "Content-Length: " + body.length()
+						+ "\r\n") + (close ? "Connection: close\r\n" : "")
+				+ "\r\n" + (body == null ? "" : body);
+	}
+
+	/**
+	 * Sends pipelined requests on a single connection.
+	 * 
+	 * @param requests
+	 *            the requests, the last one closing the connection
+	 * @return the status of each response received, ex.: <i>200 OK</i>
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private List<String> exchange(String requests) throws IOException {
+		Socket socket = new Socket("localhost", server.getPort());
+		try {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(requests.getBytes("ISO-8859-1"));
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "ISO-8859-1"));
+			List<String> statuses = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null)
+				if (line.startsWith("HTTP/1.1 "))
+					statuses.add(line.substring("HTTP/1.1 ".length()));
+			return statuses;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Test a clause with a malformed version asked to GET /resolve/ is
+	 * answered with 400, and the connection keeps serving the requests
+	 * behind it.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void testResolveMalformedClause() throws IOException {
+		assertEquals(Arrays.asList("400 Bad Request", "404 Not Found"),
+				exchange(request("GET", "/resolve/foo;version=%22x%22", null,
+						false)
+						+ request("GET", "/resolve/foo", null, true)));
+	}
+
+	/**
+	 * Test a malformed clause in a request body is answered with 400 by
+	 * every endpoint reading one, and the connection keeps serving the
+	 * requests behind it.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void testPostMalformedClause() throws IOException {
+		String body = "foo\nbar;version=\"[1.0,\"\n";
+		for (String path : new String[] { "/resolve/", "/closure", "/archive" })
+			assertEquals(path, Arrays.asList("400 Bad Request", "200 OK"),
+					exchange(request("POST", path, body, false)
+							+ request("POST", path, "foo\n", true)));
+	}
+
+	/**
+	 * Test a malformed clause asked for download is answered with 400, and
+	 * the connection keeps serving the requests behind it.
+	 * 
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public void testDownloadMalformedClause() throws IOException {
+		assertEquals(Arrays.asList("400 Bad Request", "404 Not Found"),
+				exchange(request("GET", "/foo;version=%22x%22", null, false)
+						+ request("GET", "/foo", null, true)));
+	}
+
+	/**
+	 * Test the byte ranges asked in a Range header.
+	 */
+	public void testParseRanges() {
+		List<long[]> ranges = HttpServer.parseRanges(
+				"bytes=0-99, 200-, -50", 1000);
+		assertEquals(3, ranges.size());
+		assertRange(0, 99, ranges.get(0));
+		assertRange(200, 999, ranges.get(1));
+		assertRange(950, 999, ranges.get(2));
+
+		assertRange(900, 999, HttpServer.parseRanges("bytes=900-5000", 1000)
+				.get(0));
+		assertRange(0, 999, HttpServer.parseRanges("bytes=-5000", 1000)
+				.get(0));
+
+		/*
+		 * Unsatisfiable.
+		 */
+		assertTrue(HttpServer.parseRanges("bytes=1000-", 1000).isEmpty());
+		assertTrue(HttpServer.parseRanges("bytes=-0", 1000).isEmpty());
+
+		/*
+		 * Invalid, the whole file is sent.
+		 */
+		assertNull(HttpServer.parseRanges(null, 1000));
+		assertNull(HttpServer.parseRanges("items=0-1", 1000));
+		assertNull(HttpServer.parseRanges("bytes=5-1", 1000));
+		assertNull(HttpServer.parseRanges("bytes=a-b", 1000));
+		assertNull(HttpServer.parseRanges("bytes=1", 1000));
+	}
+
+	/**
+	 * Asserts a byte range.
+	 *
+	 * @param first
+	 *            the expected first byte position
+	 * @param last
+	 *            the expected last byte position
+	 * @param range
+	 *            the range
+	 */
+	private static void assertRange(long first, long last, long[] range) {
+		assertEquals(first, range[0]);
+		assertEquals(last, range[1]);
+	}
+}
@@ -4,6 +4,10 @@ import java.io.File;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import simplesolutions.dependencyserver.impl.JarBundleFile.PackageVersion;
 import junit.framework.TestCase;
@@ -184,6 +188,30 @@ public final class TestJarFile extends TestCase {
 		assertFalse(version2.isCompatible(version1));
 	}
 
+	/**
+	 * Test versions with qualifiers and components too big to be packed.
+	 */
+	public void testVersionQualifiers() {
+		PackageVersion range = new PackageVersion(
+				"goo.gle;version=\"[1.0.0.b,1.0.0.d)\"");
+		assertTrue(range.isCompatible(new PackageVersion(
+				"goo.gle;version=\"1.0.0.c\"")));
+		assertFalse(range.isCompatible(new PackageVersion(
+				"goo.gle;version=\"1.0.0.d\"")));
+		assertFalse(range.isCompatible(new PackageVersion(
+				"goo.gle;version=\"1.0.0\"")));
+
+		range = new PackageVersion("goo.gle;version=\"[70000,70001)\"");
+		assertTrue(range.isCompatible(new PackageVersion(
+				"goo.gle;version=\"70000.20140512\"")));
+		assertFalse(range.isCompatible(new PackageVersion(
+				"goo.gle;version=\"1.2\"")));
+
+		assertSame(PackageVersion.valueOf("a;version=\"1.5\""),
+				PackageVersion.valueOf("b;version=\"1.5\""));
+		assertTrue(new PackageVersion("goo.gle").isAnyVersion());
+	}
+
 	/**
 	 * Test the XML file generating functions.
 	 */
@@ -318,4 +346,32 @@ public final class TestJarFile extends TestCase {
 		 */
 		TestUtils.deleteTemporaryFolder();
 	}
+
+	/**
+	 * Test a malformed clause in a long list is reported as unresolved, like
+	 * in a short one, without hiding the clauses after it.
+	 */
+	public void testBundlesProvidingPackages() {
+		JarBundleFile a = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api;version=\"1.0\"" });
+		RegistrySnapshot snapshot = new RegistrySnapshot().apply(
+				Arrays.asList(a), Collections.<String> emptyList());
+		BundleDatabase db = new BundleDatabase();
+
+		List<String> clauses = new ArrayList<String>();
+		for (int i = 0; i < 100; i++)
+			clauses.add(i % 10 == 3 ? "a.api;version=\"x\""
+					: i % 10 == 7 ? "a.api;version=\"[1.0,\"" : "a.api");
+		JarBundleFile[] bundles = db.getBundlesProvidingPackages(snapshot,
+				clauses);
+		for (int i = 0; i < bundles.length; i++)
+			if (i % 10 == 3 || i % 10 == 7)
+				assertNull(bundles[i]);
+			else
+				assertSame(a, bundles[i]);
+
+		bundles = db.getBundlesProvidingPackages(snapshot,
+				clauses.subList(0, 5));
+		assertEquals(Arrays.asList(a, a, a, null, a), Arrays.asList(bundles));
+	}
 }
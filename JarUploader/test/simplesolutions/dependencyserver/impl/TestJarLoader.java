@@ -0,0 +1,102 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestJarLoader.
+ */
+public final class TestJarLoader extends TestCase {
+
+	/** The manifest used by the tests. */
+	private static final String MANIFEST = "Manifest-Version: 1.0\r\n"
+			+ "Bundle-SymbolicName: foo.bar\r\n"
+			+ "Import-Package: a.b;version=\"[1,2)\",c.d;resolution:=option\r\n"
+			+ " al\r\n" + "export-package: e.f;version=\"1.0\"\r\n" + "\r\n"
+			+ "Name: ignored\r\n" + "Import-Package: x.y\r\n";
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() {
+		TestUtils.deleteTemporaryFolder();
+	}
+
+	/**
+	 * Writes a jar with many entries before the manifest.
+	 * 
+	 * @param method
+	 *            the compression method of the manifest
+	 * @return the jar file
+	 * @throws IOException
+	 */
+	private static File createJar(int method) throws IOException {
+		File jar = TestUtils.createTemporaryBundle("tmp.jar", "");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+		for (int i = 0; i < 3000; i++) {
+			out.putNextEntry(new ZipEntry("foo/Class" + i + ".class"));
+			out.write(new byte[i % 100]);
+		}
+		byte[] manifest = MANIFEST.getBytes("UTF-8");
+		ZipEntry entry = new ZipEntry("META-INF/MANIFEST.MF");
+		entry.setMethod(method);
+		if (method == ZipEntry.STORED) {
+			CRC32 crc = new CRC32();
+			crc.update(manifest);
+			entry.setSize(manifest.length);
+			entry.setCrc(crc.getValue());
+		}
+		out.putNextEntry(entry);
+		out.write(manifest);
+		out.close();
+		return jar;
+	}
+
+	/**
+	 * Test the manifest headers are read from deflated and stored entries.
+	 * 
+	 * @throws IOException
+	 */
+	public void testReadManifest() throws IOException {
+		for (int method : new int[] { ZipEntry.DEFLATED, ZipEntry.STORED }) {
+			BundleManifest manifest = JarLoader.readManifest(createJar(method)
+					.getPath());
+			assertNotNull(manifest);
+			assertEquals("foo.bar", manifest.getHeader("bundle-symbolicname"));
+			String[] imports = manifest.getImportedPackages();
+			assertEquals(2, imports.length);
+			assertEquals("a.b;version=\"[1,2)\"", imports[0]);
+			assertEquals("c.d;resolution:=optional", imports[1]);
+			assertEquals("e.f;version=\"1.0\"",
+					manifest.getExportedPackages()[0]);
+		}
+	}
+
+	/**
+	 * Test files that aren't bundles have no manifest.
+	 * 
+	 * @throws IOException
+	 */
+	public void testNoManifest() throws IOException {
+		File jar = TestUtils.createTemporaryBundle("tmp.jar", "");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+		out.putNextEntry(new ZipEntry("foo.txt"));
+		out.close();
+		assertNull(JarLoader.readManifest(jar.getPath()));
+
+		FileOutputStream garbage = new FileOutputStream(jar);
+		garbage.write("not a zip file".getBytes());
+		garbage.close();
+		assertNull(JarLoader.readManifest(jar.getPath()));
+		assertFalse(JarLoader.isValidJarFileWithManifest(jar.getPath()));
+	}
+}
@@ -0,0 +1,72 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import simplesolutions.dependencyserver.impl.ManifestHeaderParser.Clause;
+
+/**
+ * The Class TestManifestHeaderParser.
+ */
+public final class TestManifestHeaderParser extends TestCase {
+
+	/**
+	 * Test attributes, directives and quoted values.
+	 */
+	public void testParameters() {
+		List<Clause> clauses = ManifestHeaderParser
+				.parse("a.b ; version=\"[1.0, 2.0)\"; resolution:=optional,"
+						+ "c.d;uses:=\"e.f,g.h\";version=1.2 ,e.f");
+		assertEquals(3, clauses.size());
+		assertEquals("a.b", clauses.get(0).getName());
+		assertEquals("[1.0, 2.0)", clauses.get(0).getAttribute("version"));
+		assertEquals("optional", clauses.get(0).getDirective("resolution"));
+		assertEquals("e.f,g.h", clauses.get(1).getDirective("uses"));
+		assertEquals("1.2", clauses.get(1).getAttribute("version"));
+		assertNull(clauses.get(2).getAttribute("version"));
+
+		assertEquals("a.b;version=\"[1.0,2.0)\";resolution:=optional",
+				clauses.get(0).toString());
+		assertEquals("c.d;version=\"1.2\";uses:=\"e.f,g.h\"", clauses.get(1)
+				.toString());
+		assertEquals("e.f", clauses.get(2).toString());
+	}
+
+	/**
+	 * Test a clause with several paths is split in one clause per path.
+	 */
+	public void testSeveralPaths() {
+		List<Clause> clauses = ManifestHeaderParser
+				.parse("a.b;c.d;version=\"1.0\",e.f");
+		assertEquals(3, clauses.size());
+		assertEquals("c.d", clauses.get(1).getName());
+		assertEquals("1.0", clauses.get(1).getAttribute("version"));
+		assertEquals("1.0", clauses.get(0).getAttribute("version"));
+		assertEquals("e.f", clauses.get(2).getName());
+	}
+
+	/**
+	 * Test escaped quotes and empty headers.
+	 */
+	public void testEdgeCases() {
+		assertEquals("x\"y", ManifestHeaderParser.parse("a;note=\"x\\\"y\"")
+				.get(0).getAttribute("note"));
+		assertTrue(ManifestHeaderParser.parse(null).isEmpty());
+		assertNull(ManifestHeaderParser.parseToStrings(" , "));
+	}
+
+	/**
+	 * Test optional imports are told however the directive is written.
+	 */
+	public void testOptionalImport() {
+		assertTrue(ManifestHeaderParser
+				.isOptionalImport("a.b;resolution:=optional"));
+		assertTrue(ManifestHeaderParser
+				.isOptionalImport("a.b;version=\"1.0\";resolution:=\"optional\""));
+		assertTrue(ManifestHeaderParser
+				.isOptionalImport("a.b ; resolution := optional"));
+		assertFalse(ManifestHeaderParser
+				.isOptionalImport("a.b;resolution:=mandatory"));
+		assertFalse(ManifestHeaderParser.isOptionalImport("a.b;version=\"1.0\""));
+	}
+}
@@ -0,0 +1,60 @@
+package simplesolutions.dependencyserver.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestPackageIndex.
+ */
+public final class TestPackageIndex extends TestCase {
+
+	/**
+	 * Test the highest compatible version is picked.
+	 */
+	public void testHighestCompatibleVersion() {
+		PackageIndex index = new PackageIndex();
+		JarBundleFile v1 = new JarBundleFile("v1.jar", null,
+				new String[] { "goo.gle;version=\"1.0\"" });
+		JarBundleFile v15 = new JarBundleFile("v15.jar", null,
+				new String[] { "goo.gle;version=\"1.5\"" });
+		JarBundleFile v2 = new JarBundleFile("v2.jar", null,
+				new String[] { "goo.gle;version=\"2.0\"" });
+		index.add(v15);
+		index.add(v2);
+		index.add(v1);
+
+		assertSame(v2, index.getProvider("goo.gle"));
+		assertSame(v2, index.getProvider("goo.gle;version=\"0.0.0\""));
+		assertSame(v15, index.getProvider("goo.gle;version=\"1.5\""));
+		assertSame(v15, index.getProvider("goo.gle;version=\"[1,2)\""));
+		assertSame(v2, index.getProvider("goo.gle;version=\"[1,2]\""));
+		assertSame(v1, index.getProvider("goo.gle;version=\"[1,1.5)\""));
+		assertNull(index.getProvider("goo.gle;version=\"(1,1.5)\""));
+		assertNull(index.getProvider("goo.gle;version=\"1.7\""));
+		assertNull(index.getProvider("goo.gle;version=\"[3,4)\""));
+		assertNull(index.getProvider("goo.gle.not"));
+	}
+
+	/**
+	 * Test the index follows bundles being removed and replaced.
+	 */
+	public void testIncrementalUpdates() {
+		PackageIndex index = new PackageIndex();
+		JarBundleFile old = new JarBundleFile("a.jar", null, new String[] {
+				"goo.gle;version=\"1.0\"", "goo.gle.maps" });
+		index.add(old);
+		assertSame(old, index.getProvider("goo.gle.maps"));
+		/*
+		 * Modified bundle no longer exporting goo.gle.maps.
+		 */
+		JarBundleFile modified = new JarBundleFile("a.jar", null,
+				new String[] { "goo.gle;version=\"1.1\"" });
+		index.remove(old);
+		index.add(modified);
+		assertNull(index.getProvider("goo.gle.maps"));
+		assertNull(index.getProvider("goo.gle;version=\"1.0\""));
+		assertSame(modified, index.getProvider("goo.gle;version=\"[1,2)\""));
+
+		index.remove(modified);
+		assertNull(index.getProvider("goo.gle"));
+	}
+}
@@ -0,0 +1,47 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestRegistrySnapshot.
+ */
+public final class TestRegistrySnapshot extends TestCase {
+
+	/**
+	 * Test a batch of changes produces a new generation and leaves the older
+	 * snapshot untouched.
+	 */
+	public void testApply() {
+		JarBundleFile a = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api;version=\"1.0\"" });
+		JarBundleFile a2 = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api;version=\"2.0\"" });
+		JarBundleFile b = new JarBundleFile("jars/b.jar", null,
+				new String[] { "b.api" });
+
+		RegistrySnapshot empty = new RegistrySnapshot();
+		RegistrySnapshot first = empty.apply(Arrays.asList(a, b),
+				Collections.<String> emptyList());
+		RegistrySnapshot second = first.apply(Arrays.asList(a2),
+				Arrays.asList("jars/b.jar"));
+
+		assertEquals(0, empty.getGeneration());
+		assertEquals(1, first.getGeneration());
+		assertEquals(2, second.getGeneration());
+
+		assertTrue(empty.getBundles().isEmpty());
+		assertNull(empty.getBundleProvidingPackage("a.api"));
+
+		assertEquals(2, first.getBundles().size());
+		assertSame(a, first.getBundleProvidingPackage("a.api"));
+		assertSame(b, first.getBundleProvidingPackage("b.api"));
+
+		assertEquals(1, second.getBundles().size());
+		assertSame(a2, second.getBundleProvidingPackage("a.api"));
+		assertNull(second.getBundleProvidingPackage("a.api;version=\"1.0\""));
+		assertNull(second.getBundleProvidingPackage("b.api"));
+	}
+}
@@ -0,0 +1,55 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestResolutionCache.
+ */
+public final class TestResolutionCache extends TestCase {
+
+	/**
+	 * Test answers are reused within a generation, whatever the spacing of
+	 * the clause, and never across generations.
+	 */
+	public void testGeneration() {
+		JarBundleFile a = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api;version=\"1.0\"" });
+		JarBundleFile a2 = new JarBundleFile("jars/a.jar", null,
+				new String[] { "a.api;version=\"2.0\"" });
+
+		RegistrySnapshot first = new RegistrySnapshot().apply(
+				Arrays.asList(a), Collections.<String> emptyList());
+		RegistrySnapshot second = first.apply(Arrays.asList(a2),
+				Collections.<String> emptyList());
+
+		ResolutionCache cache = new ResolutionCache(64);
+		assertSame(a, cache.getBundleProvidingPackage(first, "a.api"));
+		assertSame(a, cache.getBundleProvidingPackage(first, " a.api "));
+		assertNull(cache.getBundleProvidingPackage(first, "b.api"));
+		assertNull(cache.getBundleProvidingPackage(first, "b.api"));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+
+		assertSame(a2, cache.getBundleProvidingPackage(second, "a.api"));
+		/* An older snapshot doesn't bring back its answer. */
+		assertSame(a, cache.getBundleProvidingPackage(first, "a.api"));
+		assertSame(a2, cache.getBundleProvidingPackage(second, "a.api"));
+		assertEquals(3, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals(2, cache.size());
+	}
+
+	/**
+	 * Test the cache keeps no more clauses than its capacity.
+	 */
+	public void testCapacity() {
+		RegistrySnapshot snapshot = new RegistrySnapshot();
+		ResolutionCache cache = new ResolutionCache(32);
+		for (int i = 0; i < 1000; i++)
+			cache.getBundleProvidingPackage(snapshot, "pkg" + i);
+		assertTrue(cache.size() <= 32);
+	}
+}
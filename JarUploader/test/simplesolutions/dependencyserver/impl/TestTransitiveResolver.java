@@ -0,0 +1,83 @@
+package simplesolutions.dependencyserver.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestTransitiveResolver.
+ */
+public final class TestTransitiveResolver extends TestCase {
+
+	/**
+	 * Test the closure follows imports, survives cycles and skips optional
+	 * imports.
+	 */
+	public void testClosure() {
+		PackageIndex index = new PackageIndex();
+		JarBundleFile a = new JarBundleFile("a.jar",
+				new String[] { "b.api;version=\"[1,2)\"" },
+				new String[] { "a.api;version=\"1.0\"" });
+		JarBundleFile b = new JarBundleFile("b.jar", new String[] { "c.api",
+				"d.api;resolution:=optional" },
+				new String[] { "b.api;version=\"1.2\"" });
+		JarBundleFile c = new JarBundleFile("c.jar", new String[] { "a.api",
+				"missing.api;version=\"1.0\"" }, new String[] { "c.api" });
+		JarBundleFile d = new JarBundleFile("d.jar", null,
+				new String[] { "d.api" });
+		index.add(a);
+		index.add(b);
+		index.add(c);
+		index.add(d);
+		TransitiveResolver resolver = new TransitiveResolver(index);
+
+		TransitiveResolver.Resolution r = resolver.resolve(Arrays.asList(
+				"a.api", "javax.nope;resolution:=\"optional\""));
+		assertEquals(3, r.getBundles().size());
+		assertTrue(r.getBundles().containsAll(Arrays.asList(a, b, c)));
+		assertFalse(r.getBundles().contains(d));
+		assertEquals(1, r.getUnresolved().size());
+		assertEquals("missing.api;version=\"1.0\"", r.getUnresolved()
+				.iterator().next());
+
+		/*
+		 * A changed registry gets a new resolver, without the memoized
+		 * closures of the previous one.
+		 */
+		JarBundleFile missing = new JarBundleFile("missing.jar", null,
+				new String[] { "missing.api;version=\"1.0\"" });
+		index.add(missing);
+		resolver = new TransitiveResolver(index);
+		r = resolver.resolve(Arrays.asList("c.api"));
+		assertEquals(4, r.getBundles().size());
+		assertTrue(r.getBundles().contains(missing));
+		assertTrue(r.getUnresolved().isEmpty());
+	}
+
+	/**
+	 * Test a bare version imported by a bundle is a floor, so a higher export
+	 * satisfies it, while a version above every export stays unresolved.
+	 */
+	public void testImportVersionFloor() {
+		PackageIndex index = new PackageIndex();
+		JarBundleFile a = new JarBundleFile("a.jar", new String[] {
+				"b.api;version=\"1.0\"", "c.api;version=\"2.0\"" },
+				new String[] { "a.api" });
+		JarBundleFile b = new JarBundleFile("b.jar", null,
+				new String[] { "b.api;version=\"1.2\"" });
+		JarBundleFile c = new JarBundleFile("c.jar", null,
+				new String[] { "c.api;version=\"1.5\"" });
+		index.add(a);
+		index.add(b);
+		index.add(c);
+		TransitiveResolver resolver = new TransitiveResolver(index);
+
+		TransitiveResolver.Resolution r = resolver.resolve(Arrays
+				.asList("a.api"));
+		assertEquals(2, r.getBundles().size());
+		assertTrue(r.getBundles().containsAll(Arrays.asList(a, b)));
+		assertEquals(Arrays.asList("c.api;version=\"2.0\""),
+				new ArrayList<String>(r.getUnresolved()));
+	}
+}
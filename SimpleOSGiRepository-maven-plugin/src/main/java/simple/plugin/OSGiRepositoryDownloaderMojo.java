@@ -90,9 +90,17 @@ public class OSGiRepositoryDownloaderMojo extends AbstractMojo {
 		RepositoryServerConnection server = new RepositoryServerConnection(
 				serverURL);
 		ClassPathFile classPath = new ClassPathFile();
-		for (String dependency : ManifestLoader.getImportedPackages()) {
+		String[] dependencies = ManifestLoader.getImportedPackages();
+		if (dependencies == null)
+			dependencies = new String[0];
+		/*
+		 * Resolve them all in a single request.
+		 */
+		String[] bundleNames = server.getProvidingBundleFileNames(dependencies);
+		for (int i = 0; i < dependencies.length; i++) {
+			String dependency = dependencies[i];
+			String bundleName = bundleNames[i];
 			getLog().info("Resolving: " + dependency);
-			String bundleName = server.getProvidingBundleFileName(dependency);
 			if (bundleName == null)
 				throw new MojoFailureException(
 						ErrorMessageFormatter
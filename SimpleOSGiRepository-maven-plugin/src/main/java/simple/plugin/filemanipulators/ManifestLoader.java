@@ -5,12 +5,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.LinkedList;
-import java.util.List;
 
 import org.apache.maven.plugin.MojoExecutionException;
 
 import simple.plugin.utils.ErrorMessageFormatter;
+import simple.plugin.utils.ManifestHeaderParser;
 
 /**
  * The Class ManifestLoader used to load the manifest.mf.
@@ -76,64 +75,26 @@ public final class ManifestLoader {
 			return null;
 
 		/*
-		 * Divide the file in two parts, the first one is trash the second one
-		 * contains the desired entries and some trash appended.
+		 * Seek for the line declaring the field (header names are case
+		 * insensitive) and join the continuation lines following it, i.e. the
+		 * lines beginning by a space character, which is dropped.
 		 */
-		String[] tmp1 = manifest.split(fieldName + ":");
-		if (tmp1.length != 2)
-			return null; // No entries for that field.
-		String[] tmp2 = tmp1[1].split("\n");
-
-		/*
-		 * Seek for the end of current manifest parameter i.e. the first line
-		 * not beginning by a space character. (We assume the line where
-		 * fieldName is a valid line containing at least one entry). The first
-		 * line not beginning with a space character and the followers are
-		 * trash.
-		 */
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < tmp2.length && tmp2[i].charAt(0) == ' '; i++) {
-			sb.append(tmp2[i]);
-		}
-
-		/*
-		 * Take out extras spaces that may exist.
-		 */
-		String entireFieldValue = sb.toString().replaceAll(" ", "");
-
-		/*
-		 * Separate each entry and take out the extra spaces.
-		 */
-		List<String> entries = new LinkedList<String>();
-		String packageName = "";
-		boolean insideQuote = false;
-		for (int i = 0; i < entireFieldValue.length(); i++) {
-			char c = entireFieldValue.charAt(i);
-			if (c == '"') {
-				/*
-				 * Parameter detected.
-				 */
-				insideQuote = !insideQuote;
-				packageName += c;
-			} else if (c == ',' && !insideQuote) {
-				/*
-				 * New package detected.
-				 */
-				entries.add(new String(packageName));
-				packageName = "";
-			} else {
-				packageName += c;
+		String prefix = fieldName + ":";
+		StringBuilder value = null;
+		for (String line : manifest.split("\n")) {
+			if (value != null) {
+				if (!line.startsWith(" "))
+					break;
+				value.append(line, 1, line.length());
+			} else if (line.length() == 0) {
+				break; // End of the main section.
+			} else if (line.regionMatches(true, 0, prefix, 0, prefix.length())) {
+				value = new StringBuilder(line.substring(prefix.length()));
 			}
 		}
-		/*
-		 * Add last accumulated entry.
-		 */
-		if (packageName != "")
-			entries.add(new String(packageName));
-		if (entries.size() == 0)
-			return null;
-		else
-			return entries.toArray(new String[entries.size()]);
+		if (value == null)
+			return null; // No entries for that field.
+		return ManifestHeaderParser.parseToStrings(value.toString());
 	}
 
 }
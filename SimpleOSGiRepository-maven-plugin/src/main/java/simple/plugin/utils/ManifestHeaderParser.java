@@ -0,0 +1,372 @@
+package simple.plugin.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Class ManifestHeaderParser.
+ * <p>
+ * Parses OSGi manifest headers such as <i>Import-Package</i> and
+ * <i>Export-Package</i>, following the grammar of the OSGi core specification
+ * (section 3.2.4): a header is a comma separated list of clauses, each clause
+ * is one or more paths followed by attributes (<i>name=value</i>) and
+ * directives (<i>name:=value</i>), all separated by semicolons. Values may be
+ * quoted, in which case commas, semicolons and spaces are part of the value.
+ * <p>
+ * The header is read in a single pass, substrings are only taken for the
+ * tokens themselves. A clause declaring several paths is returned as one
+ * clause per path, all sharing the same parameters.
+ * <p>
+ * The repository server keeps an identical copy of this class, keep both in
+ * sync.
+ *
+ * @author Pedro Domingues (pedro.domingues@ist.utl.pt)
+ */
+public final class ManifestHeaderParser {
+
+	/**
+	 * A clause of a manifest header, ex.:
+	 * <i>foo.bar;version="[1,2)";resolution:=optional</i>.
+	 */
+	public final static class Clause {
+
+		/** The path, usually a package name. */
+		private final String name;
+
+		/** The attributes, by name. */
+		private final Map<String, String> attributes;
+
+		/** The directives, by name. */
+		private final Map<String, String> directives;
+
+		/**
+		 * Instantiates a new clause.
+		 *
+		 * @param name
+		 *            the path
+		 * @param attributes
+		 *            the attributes
+		 * @param directives
+		 *            the directives
+		 */
+		private Clause(String name, Map<String, String> attributes,
+				Map<String, String> directives) {
+			this.name = name;
+			this.attributes = attributes;
+			this.directives = directives;
+		}
+
+		/**
+		 * Gets the path of the clause, usually a package name.
+		 *
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets an attribute.
+		 *
+		 * @param attributeName
+		 *            the attribute name, ex.: <i>version</i>
+		 * @return the attribute value, or null if not declared.
+		 */
+		public String getAttribute(String attributeName) {
+			return attributes.get(attributeName);
+		}
+
+		/**
+		 * Gets a directive.
+		 *
+		 * @param directiveName
+		 *            the directive name, ex.: <i>resolution</i>
+		 * @return the directive value, or null if not declared.
+		 */
+		public String getDirective(String directiveName) {
+			return directives.get(directiveName);
+		}
+
+		/**
+		 * Gets every attribute.
+		 *
+		 * @return the attributes, in declaration order
+		 */
+		public Map<String, String> getAttributes() {
+			return Collections.unmodifiableMap(attributes);
+		}
+
+		/**
+		 * Gets every directive.
+		 *
+		 * @return the directives, in declaration order
+		 */
+		public Map<String, String> getDirectives() {
+			return Collections.unmodifiableMap(directives);
+		}
+
+		/**
+		 * Gets the clause in the compact OSGi manifest.mf format used
+		 * throughout the registry, with every value quoted and without
+		 * whitespace, ex.: <i>foo.bar;version="[1,2)";resolution:=optional</i>.
+		 *
+		 * @return the clause
+		 */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(name);
+			for (Map.Entry<String, String> e : attributes.entrySet())
+				appendParameter(sb, e.getKey(), "=", e.getValue());
+			for (Map.Entry<String, String> e : directives.entrySet())
+				appendParameter(sb, e.getKey(), ":=", e.getValue());
+			return sb.toString();
+		}
+
+		/**
+		 * Appends a parameter to a clause being written.
+		 *
+		 * @param sb
+		 *            the clause being written
+		 * @param key
+		 *            the parameter name
+		 * @param separator
+		 *            "=" for attributes, ":=" for directives
+		 * @param value
+		 *            the parameter value
+		 */
+		private static void appendParameter(StringBuilder sb, String key,
+				String separator, String value) {
+			sb.append(';').append(key).append(separator);
+			/*
+			 * Directives are written unquoted when possible, as most tools
+			 * expect resolution:=optional.
+			 */
+			boolean quote = separator.length() == 1 || value.length() == 0;
+			for (int i = 0; !quote && i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (!Character.isLetterOrDigit(c) && c != '.' && c != '_'
+						&& c != '-')
+					quote = true;
+			}
+			if (quote)
+				sb.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (Character.isWhitespace(c))
+					continue;
+				if (c == '"' || c == '\\')
+					sb.append('\\');
+				sb.append(c);
+			}
+			if (quote)
+				sb.append('"');
+		}
+	}
+
+	/** The header being parsed. */
+	private final String header;
+
+	/** The current position in the header. */
+	private int pos;
+
+	/**
+	 * Instantiates a new manifest header parser.
+	 *
+	 * @param header
+	 *            the header value
+	 */
+	private ManifestHeaderParser(String header) {
+		this.header = header;
+	}
+
+	/**
+	 * Parses a manifest header.
+	 *
+	 * @param header
+	 *            the header value, with continuation lines already joined
+	 * @return the clauses, empty if the header is null or empty.
+	 */
+	public static List<Clause> parse(String header) {
+		List<Clause> clauses = new ArrayList<Clause>();
+		if (header != null)
+			new ManifestHeaderParser(header).parseClauses(clauses);
+		return clauses;
+	}
+
+	/**
+	 * Parses a manifest header into its clauses, in the compact OSGi
+	 * manifest.mf format (see {@link Clause#toString()}).
+	 *
+	 * @param header
+	 *            the header value, with continuation lines already joined
+	 * @return the clauses, or null if there are none.
+	 */
+	public static String[] parseToStrings(String header) {
+		List<Clause> clauses = parse(header);
+		if (clauses.isEmpty())
+			return null;
+		String[] result = new String[clauses.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = clauses.get(i).toString();
+		return result;
+	}
+
+	/**
+	 * Checks if an import clause is declared with
+	 * <i>resolution:=optional</i>, however the directive is written (quoted,
+	 * spaced, ...).
+	 *
+	 * @param clause
+	 *            the import clause
+	 * @return true, if the import is optional
+	 */
+	public static boolean isOptionalImport(String clause) {
+		/*
+		 * Most clauses have no directive at all, they're answered before
+		 * parsing.
+		 */
+		if (clause.indexOf("resolution") < 0)
+			return false;
+		for (Clause c : parse(clause))
+			if ("optional".equals(c.getDirective("resolution")))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Parses every clause.
+	 *
+	 * @param clauses
+	 *            where to put the clauses found
+	 */
+	private void parseClauses(List<Clause> clauses) {
+		List<String> paths = new ArrayList<String>(1);
+		while (pos < header.length()) {
+			paths.clear();
+			Map<String, String> attributes = new LinkedHashMap<String, String>();
+			Map<String, String> directives = new LinkedHashMap<String, String>();
+			while (pos < header.length()) {
+				String token = readToken();
+				if (lookingAt(":=")) {
+					pos += 2;
+					directives.put(token, readValue());
+				} else if (lookingAt("=")) {
+					pos++;
+					attributes.put(token, readValue());
+				} else if (token.length() > 0) {
+					paths.add(token);
+				}
+				skipWhitespace();
+				if (pos >= header.length())
+					break;
+				char c = header.charAt(pos++);
+				if (c == ',')
+					break;
+				/*
+				 * Otherwise it's a ';' (anything else ends a token).
+				 */
+			}
+			for (String path : paths)
+				clauses.add(new Clause(path, attributes, directives));
+		}
+	}
+
+	/**
+	 * Reads a path or parameter name.
+	 *
+	 * @return the token, trimmed
+	 */
+	private String readToken() {
+		skipWhitespace();
+		int start = pos;
+		while (pos < header.length()) {
+			char c = header.charAt(pos);
+			if (c == ';' || c == ',' || c == '=' || lookingAt(":="))
+				break;
+			pos++;
+		}
+		return trim(start, pos);
+	}
+
+	/**
+	 * Reads a parameter value, quoted or not.
+	 *
+	 * @return the value, without quotes
+	 */
+	private String readValue() {
+		skipWhitespace();
+		if (pos < header.length() && header.charAt(pos) == '"') {
+			int start = ++pos;
+			StringBuilder escaped = null;
+			while (pos < header.length()) {
+				char c = header.charAt(pos);
+				if (c == '"')
+					break;
+				if (c == '\\' && pos + 1 < header.length()) {
+					/*
+					 * Only escaped values need to be copied char by char.
+					 */
+					if (escaped == null)
+						escaped = new StringBuilder(header.substring(start, pos));
+					escaped.append(header.charAt(pos + 1));
+					pos += 2;
+					continue;
+				}
+				if (escaped != null)
+					escaped.append(c);
+				pos++;
+			}
+			String value = escaped != null ? escaped.toString() : header
+					.substring(start, pos);
+			if (pos < header.length())
+				pos++; // The closing quote.
+			return value;
+		}
+		int start = pos;
+		while (pos < header.length() && header.charAt(pos) != ';'
+				&& header.charAt(pos) != ',')
+			pos++;
+		return trim(start, pos);
+	}
+
+	/**
+	 * Checks if the header continues with a given string.
+	 *
+	 * @param s
+	 *            the string
+	 * @return true, if it does
+	 */
+	private boolean lookingAt(String s) {
+		return header.startsWith(s, pos);
+	}
+
+	/**
+	 * Skips whitespace.
+	 */
+	private void skipWhitespace() {
+		while (pos < header.length()
+				&& Character.isWhitespace(header.charAt(pos)))
+			pos++;
+	}
+
+	/**
+	 * Takes a substring of the header without leading and trailing
+	 * whitespace.
+	 *
+	 * @param start
+	 *            the start, inclusive
+	 * @param end
+	 *            the end, exclusive
+	 * @return the substring
+	 */
+	private String trim(int start, int end) {
+		while (start < end && Character.isWhitespace(header.charAt(start)))
+			start++;
+		while (end > start && Character.isWhitespace(header.charAt(end - 1)))
+			end--;
+		return header.substring(start, end);
+	}
+}
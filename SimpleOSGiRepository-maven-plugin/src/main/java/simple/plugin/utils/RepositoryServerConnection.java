@@ -2,11 +2,14 @@ package simple.plugin.utils;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.util.Properties;
 
 import org.apache.maven.plugin.MojoExecutionException;
 
@@ -32,37 +35,51 @@ public final class RepositoryServerConnection {
 	}
 
 	/**
-	 * Gets the providing bundle file name or null if there's no bundle in the
-	 * repository that provides this dependency.
+	 * Gets the providing bundle file name of each dependency in a single
+	 * request to the server.
 	 * 
-	 * @param packageManifestDescription
-	 *            the package manifest description
-	 * @return the providing bundle file name or null if no bundle provides the
-	 *         package.
+	 * @param packageManifestDescriptions
+	 *            the package manifest descriptions
+	 * @return the providing bundle file names, in the same order as the
+	 *         dependencies, with null for each dependency no bundle provides.
 	 * @throws MojoExecutionException
 	 */
-	public String getProvidingBundleFileName(String packageManifestDescription)
-			throws MojoExecutionException {
+	public String[] getProvidingBundleFileNames(
+			String[] packageManifestDescriptions) throws MojoExecutionException {
 		try {
-			URL url = new URL(serverURL + packageManifestDescription);
+			StringBuilder sb = new StringBuilder();
+			for (String dependency : packageManifestDescriptions)
+				sb.append(dependency + "\n");
+			byte[] body = sb.toString().getBytes("UTF-8");
+			URL url = new URL(serverURL + "resolve");
 			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-			conn.setRequestMethod("GET");
+			conn.setRequestMethod("POST");
 			conn.setAllowUserInteraction(false);
 			conn.setDoInput(true);
 			conn.setDoOutput(true);
-			conn.connect();
-			String fileName;
-			String raw = conn.getHeaderField("Content-Disposition");
-			// raw = "attachment; filename=abc.jpg"
-			if (raw != null && raw.indexOf("=") != -1) {
-				fileName = raw.split("=")[1].replace("\"", "");
-			} else {
-				throw new MojoExecutionException(
-						ErrorMessageFormatter
-								.format("There's no bundle that resolves this dependency."));
+			conn.setFixedLengthStreamingMode(body.length);
+			conn.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+			OutputStream out = conn.getOutputStream();
+			try {
+				out.write(body);
+			} finally {
+				out.close();
+			}
+			/*
+			 * The server answers a properties file describing the providing
+			 * bundle of each dependency, prefixed by its index.
+			 */
+			Properties bundles = new Properties();
+			InputStream in = conn.getInputStream();
+			try {
+				bundles.load(in);
+			} finally {
+				in.close();
 			}
-			conn.disconnect();
-			return fileName;
+			String[] fileNames = new String[packageManifestDescriptions.length];
+			for (int i = 0; i < fileNames.length; i++)
+				fileNames[i] = bundles.getProperty(i + ".name");
+			return fileNames;
 		} catch (MalformedURLException e) {
 			// e.printStackTrace();
 			throw new MojoExecutionException(